@@ -0,0 +1,127 @@
+package org.parseplatform.livequery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Multi-pattern substring search: finds which of a set of literals occur in a text in one pass over the text.
+ * Immutable once built.
+ */
+final class AhoCorasick {
+    private static final int[] NONE = new int[0];
+
+    // Transitions of each state, labels sorted for binary search
+    private final char[][] labels;
+    private final int[][] targets;
+    private final int[] fail;
+    // Ids of the literals that end at each state, including through its fail links
+    private final int[][] outputs;
+    private final boolean foldCase;
+
+    /**
+     * @param literals the id of a literal is its index
+     * @param foldCase the literals are case folded, the text is folded while it is searched
+     */
+    AhoCorasick(List<String> literals, boolean foldCase) {
+        this.foldCase = foldCase;
+        List<Map<Character, Integer>> trie = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        trie.add(new TreeMap<>());
+        ends.add(NONE);
+        for (int id = 0; id < literals.size(); id++) {
+            int state = 0;
+            for (char c : literals.get(id).toCharArray()) {
+                Integer next = trie.get(state).get(c);
+                if (next == null) {
+                    next = trie.size();
+                    trie.get(state).put(c, next);
+                    trie.add(new TreeMap<>());
+                    ends.add(NONE);
+                }
+                state = next;
+            }
+            int[] end = ends.get(state);
+            end = Arrays.copyOf(end, end.length + 1);
+            end[end.length - 1] = id;
+            ends.set(state, end);
+        }
+
+        int size = trie.size();
+        labels = new char[size][];
+        targets = new int[size][];
+        fail = new int[size];
+        outputs = new int[size][];
+        for (int state = 0; state < size; state++) {
+            Map<Character, Integer> transitions = trie.get(state);
+            labels[state] = new char[transitions.size()];
+            targets[state] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                labels[state][i] = transition.getKey();
+                targets[state][i++] = transition.getValue();
+            }
+        }
+
+        // Breadth first, so the fail state of a state is complete before it
+        Queue<Integer> queue = new ArrayDeque<>();
+        outputs[0] = ends.get(0);
+        for (int child : targets[0]) {
+            fail[child] = 0;
+            outputs[child] = ends.get(child);
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < labels[state].length; i++) {
+                int child = targets[state][i];
+                int f = fail[state];
+                int next;
+                while ((next = next(f, labels[state][i])) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = next < 0 ? 0 : next;
+                outputs[child] = concat(ends.get(child), outputs[fail[child]]);
+                queue.add(child);
+            }
+        }
+    }
+
+    // Calls found with the id of each literal that occurs in the text, once per occurrence
+    void search(String text, IntConsumer found) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = foldCase ? RequiredLiteral.fold(text.charAt(i)) : text.charAt(i);
+            int next;
+            while ((next = next(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (int id : outputs[state]) {
+                found.accept(id);
+            }
+        }
+    }
+
+    private int next(int state, char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return i < 0 ? -1 : targets[state][i];
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -1,31 +1,75 @@
 package org.parseplatform.livequery;
 
 import com.codahale.metrics.MetricRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
 import io.vertx.core.http.ServerWebSocket;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 public class Client {
     private static final Logger LOGGER = LoggerFactory.getLogger(Client.class);
     private static final String CLIENT_ID = "clientId";
     private static final String OBJECT = "object";
+    private static final int TOO_SLOW = 4;
+    // The connect option of clients that accept several events in one frame, as an array
+    static final String BATCH = "batch";
+    private static final int MAX_BATCH_FRAMES = 64;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
     private final String id;
     private final ServerWebSocket ws;
+    // Frames are written to the channel, so that the frames of a tick are flushed once
+    private final WebSocketChannel channel;
+    // The context of the socket, the outbound queue is only touched there
+    private final Context context;
+    private final int maxQueuedBytes;
+    // Messages that wait for the end of the tick or for the socket to drain, in order
+    private final Deque<Outbound> queue = new ArrayDeque<>();
+    // The last queued message of each (requestId, objectId)
+    private final Map<String, Outbound> lastQueued = new HashMap<>();
+    private final boolean batch;
+    // Greater than 0 when the client gets pre-compressed frames, see SharedDeflate
+    private final int deflateLevel;
+    private final Codec codec;
+    private int queuedBytes;
+    private boolean overflowed;
+    private boolean flushScheduled;
     public final boolean hasMasterKey;
     //private List<String> roles;
-    private final Map<Integer, SubscriptionInfo> subscriptionInfos = new HashMap<>(); // by requestId
+    // by requestId, the lookups read it to check the ACL
+    private final Map<Integer, SubscriptionInfo> subscriptionInfos = new ConcurrentHashMap<>();
     private final MetricRegistry metricRegistry;
 
-    Client(ServerWebSocket ws) {
+    /**
+     * @param maxQueuedBytes the size of the frames that may wait for a slow socket, beyond it the client is
+     *                       disconnected with a reconnect error
+     * @param batch          whether the client accepts arrays of events
+     * @param deflateLevel   the level of the shared permessage-deflate, 0 when the client doesn't use it
+     */
+    Client(ServerWebSocket ws, int maxQueuedBytes, boolean batch, int deflateLevel) {
         this.id = UUID.randomUUID().toString();
         this.ws = ws;
+        channel = new WebSocketChannel(ws);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.batch = batch;
+        this.deflateLevel = deflateLevel;
+        codec = Codec.forSubProtocol(ws.subProtocol());
         hasMasterKey = false;
         metricRegistry = MainVerticle.getMetricRegistry();
+        context = Vertx.currentContext();
+        ws.drainHandler(v -> drain());
     }
 
     public String getId() {
@@ -33,8 +77,10 @@ public class Client {
     }
 
     public void close() {
+        discardQueue();
         for (Map.Entry<Integer, SubscriptionInfo> entry : subscriptionInfos.entrySet()) {
-            entry.getValue().getSubscription().removeClientSubscription(this, entry.getKey());
+            SubscriptionInfo info = entry.getValue();
+            info.getSubscription().removeClientSubscription(this, entry.getKey(), info.getProjection());
         }
     }
 
@@ -43,10 +89,14 @@ public class Client {
             map(SubscriptionInfo::getSubscription).collect(Collectors.toSet());
     }
 
-    public void subscribe(Integer requestId, SubscriptionInfo info) {
+    // False when the subscription was removed meanwhile, the caller finds or creates it again
+    public boolean subscribe(Integer requestId, SubscriptionInfo info) {
+        if (!info.getSubscription().addClientSubscription(this, requestId, info.getProjection())) {
+            return false;
+        }
         subscriptionInfos.put(requestId, info);
-        info.getSubscription().addClientSubscription(this, requestId);
         pushSubscribe(requestId);
+        return true;
     }
 
     public Subscription unsubscribe(Integer requestId) {
@@ -58,7 +108,7 @@ public class Client {
             return null;
         }
         Subscription subscription = subscriptionInfo.getSubscription();
-        subscription.removeClientSubscription(this, requestId);
+        subscription.removeClientSubscription(this, requestId, subscriptionInfo.getProjection());
         subscriptionInfos.remove(requestId);
         pushUnsubscribe(requestId);
         return subscription;
@@ -68,8 +118,13 @@ public class Client {
         return subscriptionInfos.get(requestId);
     }
 
+    // {"op":"connected","clientId":"..","batch":true}, batch acknowledges the option
     public void pushConnect() {
-        pushEvent(Event.connected, null, null);
+        JsonObject response = response(Event.connected, null);
+        if (batch) {
+            response.put(BATCH, true);
+        }
+        send(message(response), Event.connected, 0, null, false);
     }
 
     private void pushSubscribe(Integer subscriptionId) {
@@ -81,34 +136,177 @@ public class Client {
     }
 
     public void pushEvent(Event event, Integer subscriptionId, JsonObject parseObject) {
+        JsonObject response = response(event, subscriptionId);
+        if (parseObject != null) {
+            response.put(OBJECT, parseObject);
+        }
+        send(message(response), event, 0, null, false);
+    }
+
+    void pushError(int code, String error) {
+        send(message(generateError(code, error)), Event.error, 0, null, false);
+    }
+
+    private ByteBuf message(JsonObject message) {
+        ByteBuf encoded = codec.encode(message);
+        return deflateLevel > 0 ? SharedDeflate.message(encoded) : encoded;
+    }
+
+    private JsonObject response(Event event, Integer subscriptionId) {
         JsonObject response = new JsonObject();
         response.put(ParseConstants.OP, event.name());
         response.put(CLIENT_ID, id);
         if (subscriptionId != null) {
             response.put(ParseConstants.REQUEST_ID, subscriptionId);
         }
+        return response;
+    }
+
+    // An event serialized once for all of its recipients, see EventFrame
+    void pushFrame(EventFrame frame, int requestId) {
+        ByteBuf message = deflateLevel > 0 ? frame.forDeflatingRecipient(codec, id, requestId, deflateLevel, metricRegistry)
+            : frame.forRecipient(codec, id, requestId);
+        send(message, frame.event, requestId, frame.objectId, frame.delta);
+    }
+
+    // objectId is null for the events that aren't about an object
+    private void send(ByteBuf message, Event event, int requestId, String objectId, boolean delta) {
+        if (context == null || Vertx.currentContext() == context) {
+            write(message, event, requestId, objectId, delta);
+        } else {
+            context.runOnContext(v -> write(message, event, requestId, objectId, delta));
+        }
+    }
 
-        if (parseObject != null) {
-            SubscriptionInfo info;
-            if (subscriptionId != null && (info = subscriptionInfos.get(subscriptionId)) != null) {
-                parseObject = filterObject(parseObject, info.getFields());
+    // Queues the message until the end of the tick, so that the messages of one tick are flushed together. While
+    // the socket is backed up, a queued update of an object is replaced by a later update of it, so a slow client
+    // gets the latest state; other events are kept in order. A delta update carries only the keys of its save, so it
+    // never replaces a queued update, that would drop the keys of the earlier one.
+    private void write(ByteBuf message, Event event, int requestId, String objectId, boolean delta) {
+        if (overflowed || ws.isClosed()) {
+            // A message that isn't written is never released
+            message.release();
+            return;
+        }
+        int bytes = message.readableBytes();
+        String key = objectId == null ? null : requestId + ":" + objectId;
+        Outbound last = key == null ? null : lastQueued.get(key);
+        if (event == Event.update && !delta && last != null && last.event == Event.update && ws.writeQueueFull()) {
+            last.message.release();
+            queuedBytes += bytes - last.bytes;
+            last.message = message;
+            last.bytes = bytes;
+            recordMetric("conflated");
+        } else {
+            Outbound outbound = new Outbound(message, event, key, bytes);
+            queue.add(outbound);
+            queuedBytes += bytes;
+            if (key != null) {
+                lastQueued.put(key, outbound);
             }
-            response.put(OBJECT, parseObject);
         }
-        ws.writeTextMessage(response.toString());
-        recordMetric(event.name());
+        if (queuedBytes > maxQueuedBytes) {
+            // Only what the socket holds back counts, not what waits for the end of the tick
+            drain();
+            if (queuedBytes > maxQueuedBytes) {
+                overflow();
+                return;
+            }
+        }
+        if (context == null) {
+            drain();
+        } else if (!flushScheduled && !queue.isEmpty()) {
+            flushScheduled = true;
+            context.runOnContext(v -> {
+                flushScheduled = false;
+                drain();
+            });
+        }
     }
 
-    private JsonObject filterObject(JsonObject parseObject, JsonArray fields) {
-        if (fields == null) {
-            return parseObject;
+    private void drain() {
+        if (ws.isClosed()) {
+            // A flush can be scheduled before the socket closed, writeQueueFull throws once it is
+            discardQueue();
+            return;
         }
-        JsonObject o = new JsonObject();
-        fields.forEach(field -> {
-            String key = (String) field;
-            o.put(key, parseObject.getValue(key));
-        });
-        return o;
+        boolean written = false;
+        while (!queue.isEmpty() && !ws.writeQueueFull()) {
+            Outbound outbound = take();
+            if (batch && !queue.isEmpty()) {
+                writeBatch(outbound);
+            } else {
+                writeMessage(outbound.message);
+            }
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+        }
+    }
+
+    // Packs the first queued messages into one array, e.g. [{"op":..},{"op":..}] in JSON
+    private void writeBatch(Outbound first) {
+        boolean deflate = deflateLevel > 0;
+        ByteBuf separator = deflate ? SharedDeflate.stored(codec.batchSeparator()) : codec.batchSeparator();
+        CompositeByteBuf array = Unpooled.compositeBuffer(2 * MAX_BATCH_FRAMES + 1);
+        array.addComponent(true, deflate ? SharedDeflate.stored(codec.batchOpen()) : codec.batchOpen().duplicate());
+        array.addComponent(true, first.message);
+        int frames = 1;
+        int bytes = first.bytes;
+        for (Outbound next = queue.peek(); next != null && frames < MAX_BATCH_FRAMES
+            && bytes + next.bytes <= MAX_BATCH_BYTES; next = queue.peek()) {
+            take();
+            array.addComponent(true, separator.retainedDuplicate());
+            array.addComponent(true, next.message);
+            frames++;
+            bytes += next.bytes;
+        }
+        array.addComponent(true, deflate ? SharedDeflate.message(codec.batchClose()) : codec.batchClose().duplicate());
+        separator.release();
+        writeMessage(array);
+        recordMetric("batch");
+    }
+
+    // Written without a flush, drain flushes once
+    private void writeMessage(ByteBuf message) {
+        int rsv = 0;
+        if (deflateLevel > 0) {
+            rsv = WebSocketExtension.RSV1;
+            message = SharedDeflate.finish(message);
+        }
+        WebSocketFrame frame = codec.isBinary() ? new BinaryWebSocketFrame(true, rsv, message)
+            : new TextWebSocketFrame(true, rsv, message);
+        channel.write(frame);
+    }
+
+    private Outbound take() {
+        Outbound outbound = queue.poll();
+        queuedBytes -= outbound.bytes;
+        if (outbound.key != null && lastQueued.get(outbound.key) == outbound) {
+            lastQueued.remove(outbound.key);
+        }
+        recordMetric(outbound.event.name());
+        return outbound;
+    }
+
+    private void overflow() {
+        LOGGER.warn("Disconnecting client {}: {} bytes are queued", id, queuedBytes);
+        overflowed = true;
+        discardQueue();
+        recordMetric("overflow");
+        writeMessage(message(generateError(TOO_SLOW, "Client is too slow", true)));
+        channel.flush();
+        ws.close();
+    }
+
+    private void discardQueue() {
+        for (Outbound outbound : queue) {
+            outbound.message.release();
+        }
+        queue.clear();
+        lastQueued.clear();
+        queuedBytes = 0;
     }
 
     static JsonObject generateError(int code, String error) {
@@ -130,4 +328,20 @@ public class Client {
         }
         metricRegistry.counter("parse.livequery.push." + op).inc();
     }
+
+    private static final class Outbound {
+        final Event event;
+        // requestId:objectId of object events, null for the others
+        final String key;
+        // The text of the frame, or its DEFLATE blocks
+        ByteBuf message;
+        int bytes;
+
+        Outbound(ByteBuf message, Event event, String key, int bytes) {
+            this.message = message;
+            this.event = event;
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
 }
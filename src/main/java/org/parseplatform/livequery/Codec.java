@@ -0,0 +1,325 @@
+package org.parseplatform.livequery;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.EncodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.JacksonCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The encoding of the messages of a client, negotiated as a WebSocket subprotocol, JSON text being the default.
+ * <p>
+ * An event is encoded in two parts, so that the part with the object is encoded once for all of its recipients:
+ * the head of each recipient (op, clientId, requestId), then the shared tail (the object and the end of the message).
+ */
+interface Codec {
+    Codec JSON = new Json();
+    Codec CBOR = new Cbor();
+    // By index
+    Codec[] ALL = {JSON, CBOR};
+
+    // The codec of the subprotocol of a socket, JSON when the client didn't ask for one
+    static Codec forSubProtocol(String subProtocol) {
+        for (Codec codec : ALL) {
+            if (codec.subProtocol().equals(subProtocol)) {
+                return codec;
+            }
+        }
+        return JSON;
+    }
+
+    String subProtocol();
+
+    int index();
+
+    // Whether the messages are sent in binary frames
+    boolean isBinary();
+
+    JsonObject decode(Buffer message);
+
+    ByteBuf encode(JsonObject message);
+
+    // The head of the message of one recipient of an event, after reserved bytes
+    ByteBuf head(Event event, String clientId, int requestId, boolean withObject, int reserved);
+
+    // The tail of the message of an event, in a direct buffer that the recipients share
+    ByteBuf tail(JsonObject parseObject);
+
+    // The start of a batch of messages, what separates them and the end of it, these buffers can't be released
+    ByteBuf batchOpen();
+
+    ByteBuf batchSeparator();
+
+    ByteBuf batchClose();
+
+    // {"op":"update","clientId":"..","requestId":1,"object":{..}}
+    final class Json implements Codec {
+        private static final byte[] REQUEST_ID = "\",\"requestId\":".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] OBJECT = ",\"object\":".getBytes(StandardCharsets.US_ASCII);
+        // {"op":"<event>","clientId":" by event
+        private static final byte[][] PREFIXES = new byte[Event.values().length][];
+        private static final ByteBuf OPEN = constant("[");
+        private static final ByteBuf SEPARATOR = constant(",");
+        private static final ByteBuf CLOSE = constant("]");
+
+        static {
+            for (Event event : Event.values()) {
+                PREFIXES[event.ordinal()] = ("{\"" + ParseConstants.OP + "\":\"" + event.name() + "\",\"clientId\":\"")
+                    .getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+
+        private Json() {
+        }
+
+        @Override
+        public String subProtocol() {
+            return "json";
+        }
+
+        @Override
+        public int index() {
+            return 0;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return false;
+        }
+
+        @Override
+        public JsonObject decode(Buffer message) {
+            return message.toJsonObject();
+        }
+
+        @Override
+        public ByteBuf encode(JsonObject message) {
+            return Unpooled.copiedBuffer(message.encode(), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public ByteBuf head(Event event, String clientId, int requestId, boolean withObject, int reserved) {
+            byte[] prefix = PREFIXES[event.ordinal()];
+            ByteBuf head = Unpooled.buffer(reserved + prefix.length + clientId.length() + REQUEST_ID.length + 11);
+            head.writerIndex(reserved);
+            head.writeBytes(prefix);
+            ByteBufUtil.writeUtf8(head, clientId);
+            head.writeBytes(REQUEST_ID);
+            ByteBufUtil.writeAscii(head, Integer.toString(requestId));
+            return head;
+        }
+
+        @Override
+        public ByteBuf tail(JsonObject parseObject) {
+            ByteBuf tail = PooledByteBufAllocator.DEFAULT.directBuffer();
+            if (parseObject != null) {
+                tail.writeBytes(OBJECT);
+                ByteBufUtil.writeUtf8(tail, parseObject.encode());
+            }
+            return tail.writeByte('}');
+        }
+
+        @Override
+        public ByteBuf batchOpen() {
+            return OPEN;
+        }
+
+        @Override
+        public ByteBuf batchSeparator() {
+            return SEPARATOR;
+        }
+
+        @Override
+        public ByteBuf batchClose() {
+            return CLOSE;
+        }
+
+        private static ByteBuf constant(String s) {
+            return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(s, StandardCharsets.US_ASCII).asReadOnly());
+        }
+    }
+
+    // RFC 8949, the messages are maps with the same keys as in JSON and batches are indefinite length arrays
+    final class Cbor implements Codec {
+        private static final CBORFactory FACTORY = new CBORFactory();
+        private static final int UNSIGNED = 0;
+        private static final int NEGATIVE = 1 << 5;
+        private static final int TEXT = 3 << 5;
+        private static final int MAP = 5 << 5;
+        private static final ByteBuf OPEN = constant(0x9f);
+        private static final ByteBuf SEPARATOR = Unpooled.EMPTY_BUFFER;
+        private static final ByteBuf CLOSE = constant(0xff);
+
+        private Cbor() {
+        }
+
+        @Override
+        public String subProtocol() {
+            return "cbor";
+        }
+
+        @Override
+        public int index() {
+            return 1;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return true;
+        }
+
+        @Override
+        public JsonObject decode(Buffer message) {
+            Object decoded;
+            try (JsonParser parser = FACTORY.createParser(message.getBytes())) {
+                decoded = JacksonCodec.fromParser(parser, Object.class);
+            } catch (IOException e) {
+                throw new DecodeException("Failed to decode: " + e.getMessage(), e);
+            }
+            // Like Buffer.toJsonObject(), a message that isn't a map is rejected
+            if (!(decoded instanceof JsonObject)) {
+                throw new DecodeException("Failed to decode: not a map");
+            }
+            return (JsonObject) decoded;
+        }
+
+        @Override
+        public ByteBuf encode(JsonObject message) {
+            ByteBuf encoded = Unpooled.buffer();
+            write(encoded, message);
+            return encoded;
+        }
+
+        @Override
+        public ByteBuf head(Event event, String clientId, int requestId, boolean withObject, int reserved) {
+            ByteBuf head = Unpooled.buffer(reserved + 64 + clientId.length());
+            head.writerIndex(reserved);
+            writeHeader(head, MAP, withObject ? 4 : 3);
+            writeText(head, ParseConstants.OP);
+            writeText(head, event.name());
+            writeText(head, "clientId");
+            writeText(head, clientId);
+            writeText(head, ParseConstants.REQUEST_ID);
+            if (requestId >= 0) {
+                writeHeader(head, UNSIGNED, requestId);
+            } else {
+                writeHeader(head, NEGATIVE, -1L - requestId);
+            }
+            return head;
+        }
+
+        @Override
+        public ByteBuf tail(JsonObject parseObject) {
+            ByteBuf tail = PooledByteBufAllocator.DEFAULT.directBuffer();
+            if (parseObject != null) {
+                writeText(tail, "object");
+                write(tail, parseObject);
+            }
+            return tail;
+        }
+
+        @Override
+        public ByteBuf batchOpen() {
+            return OPEN;
+        }
+
+        @Override
+        public ByteBuf batchSeparator() {
+            return SEPARATOR;
+        }
+
+        @Override
+        public ByteBuf batchClose() {
+            return CLOSE;
+        }
+
+        private static void write(ByteBuf buffer, Object value) {
+            try (JsonGenerator generator = FACTORY.createGenerator((OutputStream) new ByteBufOutputStream(buffer))) {
+                writeValue(generator, value);
+            } catch (IOException e) {
+                throw new EncodeException("Failed to encode: " + e.getMessage());
+            }
+        }
+
+        // The values of a JsonObject, nested objects can be JsonObjects or Maps
+        @SuppressWarnings("unchecked")
+        private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (value == null) {
+                generator.writeNull();
+            } else if (value instanceof JsonObject || value instanceof Map) {
+                Map<String, Object> map = value instanceof JsonObject ? ((JsonObject) value).getMap() : (Map<String, Object>) value;
+                generator.writeStartObject();
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    generator.writeFieldName(entry.getKey());
+                    writeValue(generator, entry.getValue());
+                }
+                generator.writeEndObject();
+            } else if (value instanceof JsonArray || value instanceof List) {
+                List<Object> list = value instanceof JsonArray ? ((JsonArray) value).getList() : (List<Object>) value;
+                generator.writeStartArray();
+                for (Object item : list) {
+                    writeValue(generator, item);
+                }
+                generator.writeEndArray();
+            } else if (value instanceof String) {
+                generator.writeString((String) value);
+            } else if (value instanceof Boolean) {
+                generator.writeBoolean((Boolean) value);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                generator.writeNumber(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                generator.writeNumber((Long) value);
+            } else if (value instanceof BigInteger) {
+                generator.writeNumber((BigInteger) value);
+            } else if (value instanceof BigDecimal) {
+                generator.writeNumber((BigDecimal) value);
+            } else if (value instanceof Number) {
+                generator.writeNumber(((Number) value).doubleValue());
+            } else {
+                // e.g. an Instant, in ISO-8601 like in JSON
+                generator.writeString(value.toString());
+            }
+        }
+
+        private static void writeText(ByteBuf buffer, String text) {
+            int length = ByteBufUtil.utf8Bytes(text);
+            writeHeader(buffer, TEXT, length);
+            ByteBufUtil.reserveAndWriteUtf8(buffer, text, length);
+        }
+
+        private static void writeHeader(ByteBuf buffer, int major, long value) {
+            if (value < 24) {
+                buffer.writeByte(major | (int) value);
+            } else if (value < 0x100) {
+                buffer.writeByte(major | 24).writeByte((int) value);
+            } else if (value < 0x10000) {
+                buffer.writeByte(major | 25).writeShort((int) value);
+            } else if (value < 0x100000000L) {
+                buffer.writeByte(major | 26).writeInt((int) value);
+            } else {
+                buffer.writeByte(major | 27).writeLong(value);
+            }
+        }
+
+        private static ByteBuf constant(int b) {
+            return Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(new byte[]{(byte) b}).asReadOnly());
+        }
+    }
+}
@@ -6,4 +6,9 @@ class ConfigKey {
     static final String PORT = "port";
     static final String SERVER_URL = "serverURL";
     static final String MASTER_KEY = "masterKey";
+    static final String PARALLEL_SCAN_THRESHOLD = "parallelScanThreshold";
+    static final String PARALLEL_SCAN_THREADS = "parallelScanThreads";
+    static final String MAX_CLIENT_QUEUE_BYTES = "maxClientQueueBytes";
+    static final String COMPRESSION_LEVEL = "compressionLevel";
+    static final String SHARED_COMPRESSION = "sharedCompression";
 }
@@ -0,0 +1,86 @@
+package org.parseplatform.livequery;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lanes that the saves and deletes are dispatched in, one per {@link RedisSubscriptionVerticle} instance.
+ * A message goes to the lane of its className/objectId, so the events of an object are pushed in the order of
+ * the messages, while the lanes run on different event loops.
+ */
+final class DispatchLanes {
+    private final Lane[] lanes;
+    private int joined;
+
+    // The handler of a lane, the lookup calls done() once the events of the message were pushed
+    interface Handler {
+        void handle(ParseMessage message, boolean deleted, Runnable done);
+    }
+
+    DispatchLanes(int count) {
+        lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    int size() {
+        return lanes.length;
+    }
+
+    // Called by each consumer when it starts, on its own context, returns its lane
+    synchronized int join(Handler handler) {
+        if (joined == lanes.length) {
+            throw new IllegalStateException("All the " + lanes.length + " lanes are taken");
+        }
+        Lane lane = lanes[joined];
+        lane.context = Vertx.currentContext();
+        lane.handler = handler;
+        return joined++;
+    }
+
+    int laneOf(ParseMessage message) {
+        // Objects.hash would allocate an array per message on the ingress loop
+        int hash = 31 * message.className.hashCode() + Objects.hashCode(message.objectId);
+        return Math.floorMod(hash, lanes.length);
+    }
+
+    void dispatch(ParseMessage message, boolean deleted) {
+        lanes[laneOf(message)].dispatch(message, deleted);
+    }
+
+    // parse.livequery.lane.<i>.depth: messages received and not yet pushed
+    // parse.livequery.lane.<i>.lag: milliseconds from the receipt to the push of the last message
+    void registerMetrics(MetricRegistry registry) {
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+            registry.register("parse.livequery.lane." + i + ".depth", (Gauge<Integer>) lane.depth::get);
+            registry.register("parse.livequery.lane." + i + ".lag",
+                (Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMillis(lane.lagNanos));
+        }
+    }
+
+    private static final class Lane {
+        private final AtomicInteger depth = new AtomicInteger();
+        private volatile long lagNanos;
+        // Set before the ingress starts
+        private volatile Context context;
+        private volatile Handler handler;
+
+        void dispatch(ParseMessage message, boolean deleted) {
+            long received = System.nanoTime();
+            depth.incrementAndGet();
+            // The tasks of one context run in order
+            context.runOnContext(v -> handler.handle(message, deleted, () -> {
+                lagNanos = System.nanoTime() - received;
+                depth.decrementAndGet();
+            }));
+        }
+    }
+}
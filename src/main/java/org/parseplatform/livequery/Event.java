@@ -8,5 +8,6 @@ public enum Event {
     leave,
     subscribed,
     unsubscribed,
-    update
+    update,
+    error
 }
@@ -0,0 +1,99 @@
+package org.parseplatform.livequery;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * An event that is serialized once for all of its recipients:
+ * {"op":"update","clientId":"..","requestId":1,"object":{..}}
+ * <p>
+ * Everything after the requestId is encoded into one direct buffer per codec, which the frames of all the
+ * recipients share, each frame only adds its own head with the clientId and requestId, see {@link Codec}.
+ * The frames retain the buffer until they're written, the buffer is released with the last reference to the event
+ * frame. Clients with shared permessage-deflate share the tail compressed once, see {@link SharedDeflate}.
+ */
+final class EventFrame extends AbstractReferenceCounted {
+    final Event event;
+    final String objectId;
+    // The object has only the keys that changed, see Projection
+    final boolean delta;
+    private final JsonObject parseObject;
+    // By codec, created by the first recipient that needs them
+    private final ByteBuf[] tails = new ByteBuf[Codec.ALL.length];
+    private final ByteBuf[] deflatedTails = new ByteBuf[Codec.ALL.length];
+
+    EventFrame(Event event, String objectId, JsonObject parseObject) {
+        this(event, objectId, parseObject, false);
+    }
+
+    EventFrame(Event event, String objectId, JsonObject parseObject, boolean delta) {
+        this.event = event;
+        this.objectId = objectId;
+        this.delta = delta;
+        this.parseObject = parseObject;
+    }
+
+    // The message of one recipient, it owns its head and a reference to the shared tail
+    ByteBuf forRecipient(Codec codec, String clientId, int requestId) {
+        return message(codec.head(event, clientId, requestId, parseObject != null, 0), tail(codec));
+    }
+
+    // The message of a recipient with shared permessage-deflate: its head in a stored block, then the tail
+    ByteBuf forDeflatingRecipient(Codec codec, String clientId, int requestId, int level, MetricRegistry metrics) {
+        ByteBuf head = SharedDeflate.store(codec.head(event, clientId, requestId, parseObject != null, SharedDeflate.STORED_HEADER));
+        if (metrics != null) {
+            metrics.counter("parse.livequery.deflate.recipients").inc();
+        }
+        return message(head, deflatedTail(codec, level, metrics));
+    }
+
+    private static ByteBuf message(ByteBuf head, ByteBuf shared) {
+        return Unpooled.wrappedBuffer(head, shared.retainedDuplicate());
+    }
+
+    // Recipients can be on other threads, e.g. behind an ACL check
+    synchronized ByteBuf tail(Codec codec) {
+        ByteBuf tail = tails[codec.index()];
+        if (tail == null) {
+            tail = codec.tail(parseObject);
+            tails[codec.index()] = tail;
+        }
+        return tail;
+    }
+
+    private synchronized ByteBuf deflatedTail(Codec codec, int level, MetricRegistry metrics) {
+        ByteBuf deflated = deflatedTails[codec.index()];
+        if (deflated == null) {
+            deflated = SharedDeflate.deflate(tail(codec), level, metrics);
+            deflatedTails[codec.index()] = deflated;
+        }
+        return deflated;
+    }
+
+    // Keeps the payload while recipients are still pending, e.g. behind an ACL check
+    @Override
+    public EventFrame retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public EventFrame touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected synchronized void deallocate() {
+        for (int i = 0; i < tails.length; i++) {
+            if (tails[i] != null) {
+                tails[i].release();
+            }
+            if (deflatedTails[i] != null) {
+                deflatedTails[i].release();
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.parseplatform.livequery;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interned field names of a class. Every field referenced by a query gets a small id,
+ * which indexes the decoded values of a {@link ParseObjectView}.
+ * <p>
+ * The names come from the queries of the clients, and every view allocates a slot per field of its class, so the
+ * classes and their fields are bounded. Only the queries of the registry count against the bounds: a registered
+ * query holds the ids of its fields, and once a class has no room left, the ids that no registered query holds are
+ * reclaimed and given to new fields. Likewise the classes without registered queries are dropped once there are too
+ * many. A query beyond the bounds is rejected with an IllegalArgumentException.
+ * <p>
+ * Reclaiming changes the generation of the dictionary: a query compiled before can't hold its ids, it is compiled
+ * again. The views keep the names that they were created with, so they don't take a value cached for a field as
+ * the value of another field that got its id.
+ */
+final class FieldDictionary {
+    static final int MAX_CLASSES = 1024;
+    static final int MAX_FIELDS = 512;
+    private static final Map<String, FieldDictionary> BY_CLASS = new ConcurrentHashMap<>();
+    // The names of a dropped dictionary, none of its ids names a field anymore
+    private static final String[] RETIRED = new String[0];
+    private final String className;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // Null for the ids that are reclaimed and not given out again, copied on write
+    private volatile String[] names = new String[0];
+    private volatile int generation;
+    // The registered queries that hold each id, and all the registered queries of the class
+    private int[] holders = new int[0];
+    private int queries;
+
+    private FieldDictionary(String className) {
+        this.className = className;
+    }
+
+    static FieldDictionary forClass(String className) {
+        String key = className == null ? "" : className;
+        FieldDictionary dictionary = BY_CLASS.get(key);
+        if (dictionary != null) {
+            return dictionary;
+        }
+        synchronized (BY_CLASS) {
+            if (BY_CLASS.size() >= MAX_CLASSES && !BY_CLASS.containsKey(key)) {
+                BY_CLASS.values().removeIf(FieldDictionary::retireIfUnused);
+                if (BY_CLASS.size() >= MAX_CLASSES) {
+                    throw new IllegalArgumentException("Too many classes, cannot query " + key);
+                }
+            }
+            return BY_CLASS.computeIfAbsent(key, FieldDictionary::new);
+        }
+    }
+
+    int id(String field) {
+        Integer id = ids.get(field);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(field);
+            if (id != null) {
+                return id;
+            }
+            if (names != RETIRED) {
+                return intern(field);
+            }
+        }
+        // A query compiled against a dropped dictionary, it is compiled again before it is registered
+        return forClass(className).id(field);
+    }
+
+    private int intern(String field) {
+        int id = freeId(names);
+        if (id >= MAX_FIELDS) {
+            id = freeId(reclaim());
+            if (id >= MAX_FIELDS) {
+                throw new IllegalArgumentException("Too many fields in " + className + ", cannot query " + field);
+            }
+        }
+        String[] updated = Arrays.copyOf(names, Math.max(names.length, id + 1));
+        updated[id] = field;
+        names = updated;
+        ids.put(field, id);
+        return id;
+    }
+
+    private static int freeId(String[] names) {
+        for (int id = 0; id < names.length; id++) {
+            if (names[id] == null) {
+                return id;
+            }
+        }
+        return names.length;
+    }
+
+    // Frees the ids that no registered query holds, the queries that were compiled with them are compiled again
+    private String[] reclaim() {
+        String[] updated = names.clone();
+        boolean reclaimed = false;
+        for (int id = 0; id < updated.length; id++) {
+            if (updated[id] != null && (id >= holders.length || holders[id] == 0)) {
+                ids.remove(updated[id]);
+                updated[id] = null;
+                reclaimed = true;
+            }
+        }
+        if (reclaimed) {
+            names = updated;
+            generation++;
+        }
+        return names;
+    }
+
+    private synchronized boolean retireIfUnused() {
+        if (queries > 0) {
+            return false;
+        }
+        names = RETIRED;
+        ids.clear();
+        generation++;
+        return true;
+    }
+
+    // Read before a query is compiled, see hold
+    int generation() {
+        return generation;
+    }
+
+    // Called when a query is registered, false if ids were reclaimed since the query was compiled
+    synchronized boolean hold(int generation, BitSet fields) {
+        if (generation != this.generation) {
+            return false;
+        }
+        if (holders.length < names.length) {
+            holders = Arrays.copyOf(holders, names.length);
+        }
+        for (int field = fields.nextSetBit(0); field >= 0; field = fields.nextSetBit(field + 1)) {
+            holders[field]++;
+        }
+        queries++;
+        return true;
+    }
+
+    // Called when a registered query is removed
+    synchronized void release(BitSet fields) {
+        for (int field = fields.nextSetBit(0); field >= 0; field = fields.nextSetBit(field + 1)) {
+            holders[field]--;
+        }
+        queries--;
+    }
+
+    // Id of a field that is already interned, -1 otherwise
+    int find(String field) {
+        Integer id = ids.get(field);
+        return id == null ? -1 : id;
+    }
+
+    // Null if the id was reclaimed
+    String name(int id) {
+        String[] current = names;
+        return id < current.length ? current[id] : null;
+    }
+
+    boolean isRetired() {
+        return names == RETIRED;
+    }
+
+    // A snapshot, never modified
+    String[] names() {
+        return names;
+    }
+
+    int size() {
+        return names.length;
+    }
+}
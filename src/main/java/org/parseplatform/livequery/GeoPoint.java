@@ -0,0 +1,76 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.parseplatform.livequery.ParseConstants.TYPE;
+
+/**
+ * Normalized form of a Parse GeoPoint, {"__type":"GeoPoint","latitude":..,"longitude":..}.
+ */
+final class GeoPoint {
+    static final String GEO_POINT = "GeoPoint";
+    private static final String LATITUDE = "latitude";
+    private static final String LONGITUDE = "longitude";
+
+    final double latitude;
+    final double longitude;
+
+    GeoPoint(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    static boolean isGeoPoint(Map<?, ?> map) {
+        return GEO_POINT.equals(map.get(TYPE)) && map.get(LATITUDE) instanceof Number && map.get(LONGITUDE) instanceof Number;
+    }
+
+    // A GeoPoint object, or a [longitude, latitude] pair as in Mongo; null for anything else
+    static GeoPoint of(Object value) {
+        if (value instanceof JsonObject) {
+            value = ((JsonObject) value).getMap();
+        }
+        if (value instanceof Map && isGeoPoint((Map<?, ?>) value)) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return new GeoPoint(((Number) map.get(LATITUDE)).doubleValue(), ((Number) map.get(LONGITUDE)).doubleValue());
+        }
+        List<?> pair = value instanceof List ? (List<?>) value : null;
+        if (pair != null && pair.size() == 2 && pair.get(0) instanceof Number && pair.get(1) instanceof Number) {
+            return new GeoPoint(((Number) pair.get(1)).doubleValue(), ((Number) pair.get(0)).doubleValue());
+        }
+        return null;
+    }
+
+    // Great-circle distance, the same formula as Parse.GeoPoint#radiansTo
+    double radiansTo(GeoPoint other) {
+        double sinDeltaLatitude = Math.sin(Math.toRadians(latitude - other.latitude) / 2);
+        double sinDeltaLongitude = Math.sin(Math.toRadians(longitude - other.longitude) / 2);
+        double a = sinDeltaLatitude * sinDeltaLatitude +
+            Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(other.latitude)) * sinDeltaLongitude * sinDeltaLongitude;
+        return 2 * Math.asin(Math.sqrt(Math.min(1, a)));
+    }
+
+    @Override
+    public int hashCode() {
+        return Double.hashCode(latitude) * 31 + Double.hashCode(longitude);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof GeoPoint)) {
+            return false;
+        }
+        GeoPoint other = (GeoPoint) obj;
+        return latitude == other.latitude && longitude == other.longitude;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + latitude + ", " + longitude + ")";
+    }
+}
@@ -15,6 +15,7 @@ import org.slf4j.LoggerFactory;
 import java.util.concurrent.TimeUnit;
 
 public class MainVerticle extends AbstractVerticle {
+    private static final int DEFAULT_DISPATCH_LANES = 2;
 
     @Override
     public void start() {
@@ -44,19 +45,39 @@ public class MainVerticle extends AbstractVerticle {
             port = 8080;
         }
 
+        int dispatchLanes = getIntEnv("DISPATCH_LANES", DEFAULT_DISPATCH_LANES);
+        // Disabled by default. The websocket instances already take an event loop per core, so the scan threads
+        // share the cores with them: half of the cores, to leave the event loops room while a scan runs
+        int parallelScanThreshold = getIntEnv("PARALLEL_SCAN_THRESHOLD", 0);
+        int parallelScanThreads = getIntEnv("PARALLEL_SCAN_THREADS",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int maxClientQueueBytes = getIntEnv("MAX_CLIENT_QUEUE_BYTES", 1 << 20);
+        int compressionLevel = getIntEnv("WS_COMPRESSION_LEVEL", WebsocketVerticle.DEFAULT_COMPRESSION_LEVEL);
+        boolean sharedCompression = getIntEnv("WS_SHARED_COMPRESSION", 1) != 0;
+        // One per core, each one on its own event loop
+        int websocketInstances = getIntEnv("WS_INSTANCES", Runtime.getRuntime().availableProcessors());
+
         JsonObject config = new JsonObject().
             put(ConfigKey.PORT, port).
             put(ConfigKey.APP_ID, appId).
             put(ConfigKey.MASTER_KEY, masterKey).
             put(ConfigKey.SERVER_URL, serverUrl).
-            put(ConfigKey.REDIS_URI, redisUri);
+            put(ConfigKey.REDIS_URI, redisUri).
+            put(ConfigKey.PARALLEL_SCAN_THRESHOLD, parallelScanThreshold).
+            put(ConfigKey.PARALLEL_SCAN_THREADS, parallelScanThreads).
+            put(ConfigKey.MAX_CLIENT_QUEUE_BYTES, maxClientQueueBytes).
+            put(ConfigKey.COMPRESSION_LEVEL, compressionLevel).
+            put(ConfigKey.SHARED_COMPRESSION, sharedCompression);
 
-        vertx.deployVerticle(WebsocketVerticle.class, new DeploymentOptions().setInstances(1).setConfig(config));
-        vertx.deployVerticle(RedisSubscriptionVerticle.class, new DeploymentOptions().setInstances(2).setConfig(config));
-        vertx.deployVerticle(RedisVerticle.class, new DeploymentOptions().setConfig(config));
+        vertx.deployVerticle(WebsocketVerticle.class, new DeploymentOptions().setInstances(websocketInstances).setConfig(config));
+        // The lanes are all taken before the first message is dispatched
+        DispatchLanes lanes = new DispatchLanes(dispatchLanes);
+        vertx.deployVerticle(() -> new RedisSubscriptionVerticle(lanes), new DeploymentOptions().setInstances(dispatchLanes).setConfig(config)).
+            onSuccess(id -> vertx.deployVerticle(new RedisVerticle(lanes), new DeploymentOptions().setConfig(config)));
         vertx.deployVerticle(UsersVerticle.class, new DeploymentOptions().setConfig(config));
 
         if (vertx.isMetricsEnabled()) {
+            lanes.registerMetrics(getMetricRegistry());
             StatsDReporter.forRegistry(getMetricRegistry())
                 .build("127.0.0.1", 8125)
                 .start(10, TimeUnit.SECONDS);
@@ -81,6 +102,11 @@ public class MainVerticle extends AbstractVerticle {
         return val;
     }
 
+    private int getIntEnv(String key, int defaultValue) {
+        String val = System.getenv(key);
+        return val == null ? defaultValue : Integer.parseInt(val);
+    }
+
     static MetricRegistry getMetricRegistry() {
         String registryName = System.getProperty("vertx.metrics.options.registryName");
         return SharedMetricRegistries.getOrCreate(registryName);
@@ -0,0 +1,173 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.Future;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The subscriptions that one message affects, with the event of each. The buffer is owned by the caller and reused
+ * from one message to the next, so that a lookup doesn't allocate: the arrays only grow, and candidates are
+ * de-duplicated by identity with an epoch that the buffer stamps on each subscription it evaluates.
+ * <p>
+ * A buffer stamps its own slot of {@link Subscription#stamps}, so buffers of different event loops don't interfere.
+ * Once all the slots are taken, new buffers de-duplicate with a set instead. Epochs are unique across buffers,
+ * so a slot can be released and taken by another buffer. Not thread safe.
+ */
+final class MatchBuffer {
+    static final int SLOTS = 8;
+    private static final BitSet USED_SLOTS = new BitSet(SLOTS);
+    private static final AtomicLong EPOCHS = new AtomicLong();
+
+    // -1 when there was no free slot
+    private final int slot;
+    private final Set<Subscription> offered;
+    private final Future<MatchBuffer> completed = Future.succeededFuture(this);
+    private long epoch;
+    private ParseMessage message;
+    private boolean deleted;
+    private Subscription[] subscriptions = new Subscription[16];
+    private Event[] events = new Event[16];
+    private int size;
+    // The candidates that the lookup evaluated
+    private int evaluated;
+
+    MatchBuffer() {
+        synchronized (USED_SLOTS) {
+            int free = USED_SLOTS.nextClearBit(0);
+            slot = free < SLOTS ? free : -1;
+            if (slot >= 0) {
+                USED_SLOTS.set(slot);
+            }
+        }
+        offered = slot < 0 ? Collections.newSetFromMap(new IdentityHashMap<>()) : null;
+    }
+
+    // Starts the lookup of a message, the results of the previous one are dropped
+    void begin(ParseMessage message, boolean deleted) {
+        clear();
+        this.message = message;
+        this.deleted = deleted;
+        epoch = EPOCHS.incrementAndGet();
+    }
+
+    // Frees the slot of a buffer that won't be used anymore
+    void release() {
+        clear();
+        if (slot >= 0) {
+            synchronized (USED_SLOTS) {
+                USED_SLOTS.clear(slot);
+            }
+        }
+    }
+
+    // Drops the results, so that the buffer doesn't hold on to them while it is idle
+    void clear() {
+        Arrays.fill(subscriptions, 0, size, null);
+        Arrays.fill(events, 0, size, null);
+        size = 0;
+        evaluated = 0;
+        message = null;
+        if (offered != null) {
+            offered.clear();
+        }
+    }
+
+    ParseMessage message() {
+        return message;
+    }
+
+    ParseObjectView current() {
+        return message.current();
+    }
+
+    // The original object is only relevant for saves
+    ParseObjectView original() {
+        return deleted ? null : message.original();
+    }
+
+    // Evaluates a candidate, unless it was already evaluated in this lookup
+    void offer(Subscription subscription) {
+        if (slot >= 0) {
+            if (subscription.stamps[slot] == epoch) {
+                return;
+            }
+            subscription.stamps[slot] = epoch;
+        } else if (!offered.add(subscription)) {
+            return;
+        }
+        evaluated++;
+        Event event = evaluate(subscription);
+        if (event != null) {
+            add(subscription, event);
+        }
+    }
+
+    void offerAll(Iterable<Subscription> subscriptions) {
+        for (Subscription subscription : subscriptions) {
+            offer(subscription);
+        }
+    }
+
+    void offerAll(Subscription[] subscriptions) {
+        for (Subscription subscription : subscriptions) {
+            offer(subscription);
+        }
+    }
+
+    // Doesn't modify the buffer, can be called from several threads once the message is frozen
+    Event evaluate(Subscription subscription) {
+        return deleted ? subscription.afterDeleteEvent(message) : subscription.afterSaveEvent(message);
+    }
+
+    // Adds a subscription that was evaluated elsewhere, it must not have been offered to this lookup
+    void add(Subscription subscription, Event event) {
+        if (size == subscriptions.length) {
+            subscriptions = Arrays.copyOf(subscriptions, size * 2);
+            events = Arrays.copyOf(events, size * 2);
+        }
+        subscriptions[size] = subscription;
+        events[size++] = event;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // The candidates offered to the lookup, without the duplicates and the ones added from a parallel scan
+    int evaluated() {
+        return evaluated;
+    }
+
+    // The length of the result arrays, they only grow
+    int capacity() {
+        return subscriptions.length;
+    }
+
+    Subscription subscription(int i) {
+        return subscriptions[i];
+    }
+
+    Event event(int i) {
+        return events[i];
+    }
+
+    // An already completed future of this buffer
+    Future<MatchBuffer> completed() {
+        return completed;
+    }
+
+    Map<Subscription, Event> toMap() {
+        Map<Subscription, Event> map = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            map.put(subscriptions[i], events[i]);
+        }
+        return map;
+    }
+}
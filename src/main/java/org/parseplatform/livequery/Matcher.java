@@ -0,0 +1,852 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
+import static org.parseplatform.livequery.ParseConstants.DATE;
+import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
+import static org.parseplatform.livequery.ParseConstants.TYPE;
+
+/**
+ * Compiled form of a query's "where" clause.
+ * The tree is built once when the query is created, with the expected values normalized the same way
+ * as {@link ParseObjectView} normalizes the object, and fields resolved to their {@link FieldDictionary} ids.
+ * Evaluation only reads the decoded values of the view, so it doesn't allocate.
+ */
+abstract class Matcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Matcher.class);
+    static final String $OR = "$or";
+    static final String $AND = "$and";
+    private static final String $OPTIONS = "$options";
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+    private static final double EARTH_RADIUS_KILOMETERS = 6371.0;
+
+    static final Matcher ALWAYS = new Constant(true);
+    static final Matcher NEVER = new Constant(false);
+
+    abstract boolean matches(ParseObjectView o);
+
+    // Collects the ids of the fields that the condition reads
+    void collectFields(BitSet out) {
+    }
+
+    // Collects the equality predicates that every matching object must satisfy
+    void collectEqualities(List<Query.Entry> out) {
+    }
+
+    // A range condition that every matching object must satisfy
+    Range rangeCondition() {
+        return null;
+    }
+
+    // A geo condition that every matching object must satisfy
+    Geo geoCondition() {
+        return null;
+    }
+
+    // A regex with a required literal that every matching object must satisfy
+    Regex regexCondition() {
+        return null;
+    }
+
+    // A full text condition that every matching object must satisfy
+    Text textCondition() {
+        return null;
+    }
+
+    /**
+     * Keys of an index that is guaranteed to contain every object that matches:
+     * a matching object has at least one of the returned (field, value) pairs.
+     * Returns null when no such set exists.
+     *
+     * @param preference orders the alternatives of an AND, the smallest one is used
+     */
+    List<Query.Entry> indexKeys(Comparator<List<Query.Entry>> preference) {
+        return null;
+    }
+
+    static Matcher compile(JsonObject where, FieldDictionary dictionary) {
+        List<Matcher> conditions = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : where) {
+            String key = entry.getKey();
+            if ($OR.equals(key)) {
+                conditions.add(compileList(entry.getValue(), false, dictionary));
+            } else if ($AND.equals(key)) {
+                conditions.add(compileList(entry.getValue(), true, dictionary));
+            } else {
+                conditions.add(compileCondition(dictionary.id(key), key, entry.getValue()));
+            }
+        }
+        return and(conditions);
+    }
+
+    private static Matcher compileList(Object value, boolean and, FieldDictionary dictionary) {
+        if (!(value instanceof JsonArray)) {
+            LOGGER.warn("Unexpected conditions: {}", value);
+            return NEVER;
+        }
+        List<Matcher> conditions = new ArrayList<>();
+        for (Object condition : (JsonArray) value) {
+            if (condition instanceof JsonObject) {
+                conditions.add(compile((JsonObject) condition, dictionary));
+            } else {
+                LOGGER.warn("Unexpected condition: {}", condition);
+            }
+        }
+        return and ? and(conditions) : or(conditions);
+    }
+
+    private static Matcher compileCondition(int field, String key, Object expected) {
+        if (expected == null) {
+            return new IsNull(field, key);
+        }
+        if (!(expected instanceof JsonObject)) {
+            return new Eq(field, key, ParseObjectView.normalize(expected));
+        }
+        JsonObject operators = (JsonObject) expected;
+        if (isPointer(operators) || isDate(operators) || GeoPoint.isGeoPoint(operators.getMap())) {
+            Object value = ParseObjectView.normalize(operators);
+            return value == null || value instanceof Map ? NEVER : new Eq(field, key, value);
+        }
+        List<Matcher> conditions = new ArrayList<>();
+        Range range = null;
+        for (Map.Entry<String, Object> opAndVal : operators) {
+            String op = opAndVal.getKey();
+            Object value = opAndVal.getValue();
+            switch (op) {
+                case "$exists":
+                    conditions.add(new Exists(field, key, Boolean.TRUE.equals(value)));
+                    break;
+                case "$eq":
+                    conditions.add(compileCondition(field, key, value));
+                    break;
+                case "$ne":
+                    conditions.add(new Not(compileCondition(field, key, value)));
+                    break;
+                case "$gt":
+                case "$gte":
+                case "$lt":
+                case "$lte":
+                    Object bound = ParseObjectView.normalize(value);
+                    boolean date = bound instanceof Long;
+                    if (!(date || bound instanceof Double) || (range != null && range.date != date)) {
+                        LOGGER.warn("Unsupported value for {}: {}", op, value);
+                        return NEVER;
+                    }
+                    if (range == null) {
+                        range = new Range(field, key, date);
+                        conditions.add(range);
+                    }
+                    range.bound(op, ((Number) bound).doubleValue());
+                    break;
+                case "$in":
+                    conditions.add(new In(field, key, toSet(value)));
+                    break;
+                case "$nin":
+                    conditions.add(new Not(new In(field, key, toSet(value))));
+                    break;
+                case "$regex":
+                    if (!(value instanceof String)) {
+                        LOGGER.warn("Unsupported value for {}: {}", op, value);
+                        return NEVER;
+                    }
+                    conditions.add(new Regex(field, key, compilePattern((String) value, operators.getString($OPTIONS))));
+                    break;
+                case $OPTIONS:
+                    break;
+                case "$all":
+                    conditions.add(new All(field, key, toSet(value)));
+                    break;
+                case "$nearSphere":
+                    GeoPoint center = GeoPoint.of(value);
+                    if (center == null) {
+                        LOGGER.warn("Unsupported value for {}: {}", op, value);
+                        return NEVER;
+                    }
+                    conditions.add(new Near(field, key, center, maxDistance(operators)));
+                    break;
+                case "$maxDistance":
+                case "$maxDistanceInRadians":
+                case "$maxDistanceInMiles":
+                case "$maxDistanceInKilometers":
+                    break;
+                case "$within":
+                    conditions.add(compileBox(field, key, value));
+                    break;
+                case "$geoWithin":
+                    conditions.add(compileGeoWithin(field, key, value));
+                    break;
+                case "$text":
+                    conditions.add(compileText(field, key, value));
+                    break;
+                default:
+                    LOGGER.warn("Unsupported operator {}", op);
+                    return NEVER;
+            }
+        }
+        return and(conditions);
+    }
+
+    // In radians, unbounded when there's no $maxDistance
+    private static double maxDistance(JsonObject operators) {
+        Object value;
+        if ((value = operators.getValue("$maxDistanceInMiles")) instanceof Number) {
+            return ((Number) value).doubleValue() / EARTH_RADIUS_MILES;
+        }
+        if ((value = operators.getValue("$maxDistanceInKilometers")) instanceof Number) {
+            return ((Number) value).doubleValue() / EARTH_RADIUS_KILOMETERS;
+        }
+        if ((value = operators.getValue("$maxDistanceInRadians")) instanceof Number ||
+            (value = operators.getValue("$maxDistance")) instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // {"$box": [southwest, northeast]}
+    private static Matcher compileBox(int field, String key, Object value) {
+        JsonArray corners = value instanceof JsonObject ? ((JsonObject) value).getJsonArray("$box") : null;
+        GeoPoint southwest = corners != null && corners.size() == 2 ? GeoPoint.of(corners.getValue(0)) : null;
+        GeoPoint northeast = corners != null && corners.size() == 2 ? GeoPoint.of(corners.getValue(1)) : null;
+        if (southwest == null || northeast == null ||
+            southwest.latitude > northeast.latitude || southwest.longitude > northeast.longitude) {
+            LOGGER.warn("Unsupported value for $within: {}", value);
+            return NEVER;
+        }
+        return new Box(field, key, southwest, northeast);
+    }
+
+    // {"$polygon": [point, ...]} or {"$centerSphere": [point, radians]}
+    private static Matcher compileGeoWithin(int field, String key, Object value) {
+        JsonObject o = value instanceof JsonObject ? (JsonObject) value : new JsonObject();
+        Object polygon = o.getValue("$polygon");
+        Object centerSphere = o.getValue("$centerSphere");
+        if (polygon instanceof JsonArray && ((JsonArray) polygon).size() >= 3) {
+            JsonArray points = (JsonArray) polygon;
+            GeoPoint[] vertices = new GeoPoint[points.size()];
+            for (int i = 0; i < vertices.length; i++) {
+                if ((vertices[i] = GeoPoint.of(points.getList().get(i))) == null) {
+                    LOGGER.warn("Unsupported value for $geoWithin: {}", value);
+                    return NEVER;
+                }
+            }
+            return new Polygon(field, key, vertices);
+        }
+        if (centerSphere instanceof JsonArray && ((JsonArray) centerSphere).size() == 2) {
+            GeoPoint center = GeoPoint.of(((JsonArray) centerSphere).getList().get(0));
+            Object distance = ((JsonArray) centerSphere).getValue(1);
+            if (center != null && distance instanceof Number) {
+                return new Near(field, key, center, ((Number) distance).doubleValue());
+            }
+        }
+        LOGGER.warn("Unsupported value for $geoWithin: {}", value);
+        return NEVER;
+    }
+
+    // {"$search": {"$term": "...", "$caseSensitive": false, "$diacriticSensitive": false}}
+    private static Matcher compileText(int field, String key, Object value) {
+        Object search = value instanceof JsonObject ? ((JsonObject) value).getValue("$search") : null;
+        Object term = search instanceof JsonObject ? ((JsonObject) search).getValue("$term") : null;
+        if (!(term instanceof String)) {
+            LOGGER.warn("Unsupported value for $text: {}", value);
+            return NEVER;
+        }
+        JsonObject o = (JsonObject) search;
+        Text text = new Text(field, key, (String) term,
+            Boolean.TRUE.equals(o.getValue("$caseSensitive")), Boolean.TRUE.equals(o.getValue("$diacriticSensitive")));
+        return text.terms.phrases.isEmpty() && text.terms.words.isEmpty() ? NEVER : text;
+    }
+
+    private static Pattern compilePattern(String regex, String options) {
+        int flags = 0;
+        if (options != null) {
+            for (int i = 0; i < options.length(); i++) {
+                switch (options.charAt(i)) {
+                    case 'i':
+                        flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+                        break;
+                    case 'm':
+                        flags |= Pattern.MULTILINE;
+                        break;
+                    case 's':
+                        flags |= Pattern.DOTALL;
+                        break;
+                    case 'x':
+                        flags |= Pattern.COMMENTS;
+                        break;
+                    default:
+                        LOGGER.warn("Unsupported regex option {}", options.charAt(i));
+                }
+            }
+        }
+        return Pattern.compile(regex, flags);
+    }
+
+    private static Set<Object> toSet(Object value) {
+        Set<Object> set = new HashSet<>();
+        if (value instanceof JsonArray) {
+            for (Object o : ((JsonArray) value).getList()) {
+                set.add(ParseObjectView.normalize(o));
+            }
+        } else {
+            LOGGER.warn("Expected an array: {}", value);
+        }
+        return set;
+    }
+
+    private static Matcher and(List<Matcher> conditions) {
+        conditions.removeIf(c -> c == ALWAYS);
+        if (conditions.contains(NEVER)) {
+            return NEVER;
+        }
+        if (conditions.isEmpty()) {
+            return ALWAYS;
+        }
+        if (conditions.size() == 1) {
+            return conditions.get(0);
+        }
+        return new And(conditions.toArray(new Matcher[0]));
+    }
+
+    private static Matcher or(List<Matcher> conditions) {
+        conditions.removeIf(c -> c == NEVER);
+        if (conditions.contains(ALWAYS)) {
+            return ALWAYS;
+        }
+        if (conditions.isEmpty()) {
+            return NEVER;
+        }
+        if (conditions.size() == 1) {
+            return conditions.get(0);
+        }
+        return new Or(conditions.toArray(new Matcher[0]));
+    }
+
+    static boolean isPointer(JsonObject o) {
+        return o.containsKey(CLASS_NAME) && o.containsKey(OBJECT_ID);
+    }
+
+    static boolean isDate(Object value) {
+        if (value instanceof Map) {
+            return DATE.equals(((Map<?, ?>) value).get(TYPE));
+        }
+        return value instanceof JsonObject && DATE.equals(((JsonObject) value).getValue(TYPE));
+    }
+
+    // Normalized numbers and Dates (epoch millis) as a double, NaN for anything else
+    static double rangeValue(Object value) {
+        return value instanceof Double || value instanceof Long ? ((Number) value).doubleValue() : Double.NaN;
+    }
+
+    // A condition on one field of the object
+    abstract static class FieldCondition extends Matcher {
+        final int field;
+        final String key;
+
+        FieldCondition(int field, String key) {
+            this.field = field;
+            this.key = key;
+        }
+
+        @Override
+        void collectFields(BitSet out) {
+            out.set(field);
+        }
+    }
+
+    static final class Constant extends Matcher {
+        private final boolean result;
+
+        private Constant(boolean result) {
+            this.result = result;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            return result;
+        }
+    }
+
+    static final class Eq extends FieldCondition {
+        final Object expected;
+
+        Eq(int field, String key, Object expected) {
+            super(field, key);
+            this.expected = expected;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            return expected.equals(o.get(field));
+        }
+
+        @Override
+        void collectEqualities(List<Query.Entry> out) {
+            out.add(new Query.Entry(key, expected));
+        }
+
+        @Override
+        List<Query.Entry> indexKeys(Comparator<List<Query.Entry>> preference) {
+            return Collections.singletonList(new Query.Entry(key, expected));
+        }
+    }
+
+    // A missing field equals null, like in $in
+    static final class IsNull extends FieldCondition {
+
+        IsNull(int field, String key) {
+            super(field, key);
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            return value == null || value == ParseObjectView.ABSENT;
+        }
+    }
+
+    static final class Exists extends FieldCondition {
+        final boolean exists;
+
+        Exists(int field, String key, boolean exists) {
+            super(field, key);
+            this.exists = exists;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            return exists == (o.get(field) != ParseObjectView.ABSENT);
+        }
+    }
+
+    // Numbers, or Dates compared by their epoch millis, never one with the other
+    static final class Range extends FieldCondition {
+        final boolean date;
+        double lower = Double.NEGATIVE_INFINITY;
+        double upper = Double.POSITIVE_INFINITY;
+        boolean lowerInclusive = true;
+        boolean upperInclusive = true;
+
+        Range(int field, String key, boolean date) {
+            super(field, key);
+            this.date = date;
+        }
+
+        void bound(String op, double bound) {
+            switch (op) {
+                case "$gt":
+                    lower = bound;
+                    lowerInclusive = false;
+                    break;
+                case "$gte":
+                    lower = bound;
+                    lowerInclusive = true;
+                    break;
+                case "$lt":
+                    upper = bound;
+                    upperInclusive = false;
+                    break;
+                case "$lte":
+                    upper = bound;
+                    upperInclusive = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException(op);
+            }
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            return (date ? value instanceof Long : value instanceof Double) && contains(((Number) value).doubleValue());
+        }
+
+        boolean contains(double d) {
+            return (lowerInclusive ? d >= lower : d > lower) && (upperInclusive ? d <= upper : d < upper);
+        }
+
+        @Override
+        Range rangeCondition() {
+            return this;
+        }
+    }
+
+    // A region of GeoPoints, with the bounding box that the grid index files it by
+    abstract static class Geo extends FieldCondition {
+        double minLatitude = -90;
+        double maxLatitude = 90;
+        double minLongitude = -180;
+        double maxLongitude = 180;
+
+        Geo(int field, String key) {
+            super(field, key);
+        }
+
+        abstract boolean contains(GeoPoint point);
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            return value instanceof GeoPoint && contains((GeoPoint) value);
+        }
+
+        boolean inBounds(GeoPoint point) {
+            return point.latitude >= minLatitude && point.latitude <= maxLatitude &&
+                point.longitude >= minLongitude && point.longitude <= maxLongitude;
+        }
+
+        @Override
+        Geo geoCondition() {
+            return this;
+        }
+    }
+
+    // $nearSphere with $maxDistance, or $geoWithin with $centerSphere
+    static final class Near extends Geo {
+        final GeoPoint center;
+        final double maxDistance;
+
+        Near(int field, String key, GeoPoint center, double maxDistance) {
+            super(field, key);
+            this.center = center;
+            this.maxDistance = maxDistance;
+            double degrees = Math.toDegrees(maxDistance);
+            if (degrees < 90) {
+                minLatitude = Math.max(-90, center.latitude - degrees);
+                maxLatitude = Math.min(90, center.latitude + degrees);
+                if (minLatitude > -90 && maxLatitude < 90) {
+                    double longitudes = Math.toDegrees(Math.asin(Math.sin(maxDistance) / Math.cos(Math.toRadians(center.latitude))));
+                    if (center.longitude - longitudes >= -180 && center.longitude + longitudes <= 180) {
+                        minLongitude = center.longitude - longitudes;
+                        maxLongitude = center.longitude + longitudes;
+                    }
+                }
+            }
+        }
+
+        @Override
+        boolean contains(GeoPoint point) {
+            return center.radiansTo(point) <= maxDistance;
+        }
+    }
+
+    static final class Box extends Geo {
+        Box(int field, String key, GeoPoint southwest, GeoPoint northeast) {
+            super(field, key);
+            minLatitude = southwest.latitude;
+            maxLatitude = northeast.latitude;
+            minLongitude = southwest.longitude;
+            maxLongitude = northeast.longitude;
+        }
+
+        @Override
+        boolean contains(GeoPoint point) {
+            return inBounds(point);
+        }
+    }
+
+    // Even-odd rule, with longitude as x and latitude as y
+    static final class Polygon extends Geo {
+        private final double[] latitudes;
+        private final double[] longitudes;
+
+        Polygon(int field, String key, GeoPoint[] vertices) {
+            super(field, key);
+            latitudes = new double[vertices.length];
+            longitudes = new double[vertices.length];
+            minLatitude = minLongitude = Double.POSITIVE_INFINITY;
+            maxLatitude = maxLongitude = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < vertices.length; i++) {
+                latitudes[i] = vertices[i].latitude;
+                longitudes[i] = vertices[i].longitude;
+                minLatitude = Math.min(minLatitude, latitudes[i]);
+                maxLatitude = Math.max(maxLatitude, latitudes[i]);
+                minLongitude = Math.min(minLongitude, longitudes[i]);
+                maxLongitude = Math.max(maxLongitude, longitudes[i]);
+            }
+        }
+
+        @Override
+        boolean contains(GeoPoint point) {
+            if (!inBounds(point)) {
+                return false;
+            }
+            boolean inside = false;
+            for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++) {
+                if ((latitudes[i] > point.latitude) != (latitudes[j] > point.latitude) &&
+                    point.longitude < (longitudes[j] - longitudes[i]) * (point.latitude - latitudes[i]) / (latitudes[j] - latitudes[i]) + longitudes[i]) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+    }
+
+    static final class In extends FieldCondition {
+        final Set<Object> values;
+
+        In(int field, String key, Set<Object> values) {
+            super(field, key);
+            this.values = values;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            return values.contains(value == ParseObjectView.ABSENT ? null : value);
+        }
+
+        @Override
+        List<Query.Entry> indexKeys(Comparator<List<Query.Entry>> preference) {
+            if (values.contains(null)) {
+                return null;
+            }
+            List<Query.Entry> keys = new ArrayList<>(values.size());
+            for (Object value : values) {
+                keys.add(new Query.Entry(key, value));
+            }
+            return keys;
+        }
+    }
+
+    static final class Regex extends FieldCondition {
+        final Pattern pattern;
+        // A substring of every match, case folded if the pattern is case insensitive; may be null
+        final String literal;
+        final boolean foldCase;
+
+        Regex(int field, String key, Pattern pattern) {
+            super(field, key);
+            this.pattern = pattern;
+            literal = RequiredLiteral.of(pattern);
+            foldCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            return value instanceof String && pattern.matcher((String) value).find();
+        }
+
+        @Override
+        Regex regexCondition() {
+            return literal == null ? null : this;
+        }
+    }
+
+    static final class Text extends FieldCondition {
+        final TextSearch.Terms terms;
+        // Case and diacritics folded, for the index
+        final List<String> tokens;
+        private final boolean caseSensitive;
+        private final boolean diacriticSensitive;
+
+        Text(int field, String key, String search, boolean caseSensitive, boolean diacriticSensitive) {
+            super(field, key);
+            this.caseSensitive = caseSensitive;
+            this.diacriticSensitive = diacriticSensitive;
+            terms = new TextSearch.Terms(search, caseSensitive, diacriticSensitive);
+            tokens = new TextSearch.Terms(search, false, false).required();
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            List<String> fieldTokens = o.tokens(field, caseSensitive, diacriticSensitive);
+            return fieldTokens != null && terms.matches(fieldTokens);
+        }
+
+        @Override
+        Text textCondition() {
+            return tokens == null ? null : this;
+        }
+    }
+
+    // The array must hold exactly the expected values, in any order
+    static final class All extends FieldCondition {
+        final Set<Object> values;
+        private final Object[] valueArray;
+
+        All(int field, String key, Set<Object> values) {
+            super(field, key);
+            this.values = values;
+            this.valueArray = values.toArray();
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            Object value = o.get(field);
+            if (!(value instanceof List)) {
+                return false;
+            }
+            List<?> actual = (List<?>) value;
+            for (int i = 0; i < actual.size(); i++) {
+                if (!values.contains(actual.get(i))) {
+                    return false;
+                }
+            }
+            for (Object expected : valueArray) {
+                if (!actual.contains(expected)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Not extends Matcher {
+        final Matcher condition;
+
+        Not(Matcher condition) {
+            this.condition = condition;
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            return !condition.matches(o);
+        }
+
+        @Override
+        void collectFields(BitSet out) {
+            condition.collectFields(out);
+        }
+    }
+
+    static final class And extends Matcher {
+        final Matcher[] conditions;
+
+        And(Matcher[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        void collectFields(BitSet out) {
+            for (Matcher condition : conditions) {
+                condition.collectFields(out);
+            }
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            for (Matcher condition : conditions) {
+                if (!condition.matches(o)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void collectEqualities(List<Query.Entry> out) {
+            for (Matcher condition : conditions) {
+                condition.collectEqualities(out);
+            }
+        }
+
+        @Override
+        Range rangeCondition() {
+            for (Matcher condition : conditions) {
+                Range range = condition.rangeCondition();
+                if (range != null) {
+                    return range;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Text textCondition() {
+            for (Matcher condition : conditions) {
+                Text text = condition.textCondition();
+                if (text != null) {
+                    return text;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Regex regexCondition() {
+            for (Matcher condition : conditions) {
+                Regex regex = condition.regexCondition();
+                if (regex != null) {
+                    return regex;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        Geo geoCondition() {
+            for (Matcher condition : conditions) {
+                Geo geo = condition.geoCondition();
+                if (geo != null) {
+                    return geo;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        List<Query.Entry> indexKeys(Comparator<List<Query.Entry>> preference) {
+            List<Query.Entry> best = null;
+            for (Matcher condition : conditions) {
+                List<Query.Entry> keys = condition.indexKeys(preference);
+                if (keys != null && (best == null || preference.compare(keys, best) < 0)) {
+                    best = keys;
+                }
+            }
+            return best;
+        }
+    }
+
+    static final class Or extends Matcher {
+        final Matcher[] conditions;
+
+        Or(Matcher[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        void collectFields(BitSet out) {
+            for (Matcher condition : conditions) {
+                condition.collectFields(out);
+            }
+        }
+
+        @Override
+        boolean matches(ParseObjectView o) {
+            for (Matcher condition : conditions) {
+                if (condition.matches(o)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        List<Query.Entry> indexKeys(Comparator<List<Query.Entry>> preference) {
+            List<Query.Entry> keys = new ArrayList<>();
+            for (Matcher condition : conditions) {
+                List<Query.Entry> conditionKeys = condition.indexKeys(preference);
+                if (conditionKeys == null) {
+                    return null;
+                }
+                keys.addAll(conditionKeys);
+            }
+            return keys;
+        }
+    }
+}
@@ -7,7 +7,12 @@ class ParseConstants {
     static final String AFTER_DELETE = "afterDelete";
     static final String CLASS_NAME = "className";
     static final String OBJECT_ID = "objectId";
+    static final String UPDATED_AT = "updatedAt";
     static final String ACL = "ACL";
     static final String OP = "op";
     static final String REQUEST_ID = "requestId";
+    static final String TYPE = "__type";
+    static final String POINTER = "Pointer";
+    static final String DATE = "Date";
+    static final String ISO = "iso";
 }
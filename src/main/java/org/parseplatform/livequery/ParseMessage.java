@@ -1,39 +1,330 @@
 package org.parseplatform.livequery;
 
-import io.vertx.core.eventbus.Message;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.JacksonCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import static org.parseplatform.livequery.ParseConstants.ACL;
+import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
+import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
 
 public class ParseMessage {
     private static final String CURRENT_PARSE_OBJECT = "currentParseObject";
     private static final String ORIGINAL_PARSE_OBJECT = "originalParseObject";
-    private static final String VALUE = "value";
-    private static final String MESSAGE = "message";
+    private static final String PARSE_OP = "__op";
 
     public final String className;
     public final String objectId;
-    public final JsonObject currentParseObject;
-    public final JsonObject originalParseObject;
-    private final ParseACL acl;
-
-    static ParseMessage create(Message<JsonObject> message) {
-        JsonObject o = new JsonObject(message.body().getJsonObject(VALUE).getString(MESSAGE));
-        return new ParseMessage(o);
-    }
+    // The JSON of the message when it was parsed selectively, and the raw JSON of its objects once split out
+    private final String raw;
+    private String currentRaw;
+    private String originalRaw;
+    private boolean split;
+    private JsonObject currentParseObject;
+    private JsonObject originalParseObject;
+    private Map<String, Object> currentFields;
+    private ParseACL acl;
+    private boolean aclDecoded;
+    private ParseObjectView current;
+    private ParseObjectView original;
+    // Fields compared so far, and those of them that changed
+    private BitSet compared;
+    private BitSet changed;
+    private boolean frozen;
+    // The keys of the object that the save changed, see changes()
+    private JsonObject changes;
 
     ParseMessage(JsonObject o) {
         currentParseObject = o.getJsonObject(CURRENT_PARSE_OBJECT);
-        className = currentParseObject.getString(ParseConstants.CLASS_NAME);
-        objectId = currentParseObject.getString(ParseConstants.OBJECT_ID);
+        className = currentParseObject.getString(CLASS_NAME);
+        objectId = currentParseObject.getString(OBJECT_ID);
         originalParseObject = o.getJsonObject(ORIGINAL_PARSE_OBJECT);
-        o = currentParseObject.getJsonObject(ParseConstants.ACL);
-        acl = (o == null) ? null : new ParseACL(o);
+        raw = null;
+    }
+
+    private ParseMessage(String className, String objectId, String raw) {
+        this.className = className;
+        this.objectId = objectId;
+        this.raw = raw;
+    }
+
+    /**
+     * Reads the message only up to the className and objectId of the current object, which is all that the ingress
+     * needs to hand it over to the lane of the object; the lane tokenizes the rest, see {@link #split()}.
+     * Returns null when nobody subscribes to the class, so most messages are dropped right there.
+     * The objects are kept as raw JSON, their views decode only the fields that queries refer to.
+     */
+    static ParseMessage parse(String message, Predicate<String> isSubscribed) {
+        String className = null;
+        String objectId = null;
+        try (JsonParser parser = JacksonCodec.createParser(message)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new DecodeException("Expected an object: " + message);
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                if (parser.nextToken() != JsonToken.START_OBJECT || !CURRENT_PARSE_OBJECT.equals(name)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while ((className == null || objectId == null) && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    if (parser.nextToken() == JsonToken.VALUE_STRING && CLASS_NAME.equals(field)) {
+                        className = parser.getText();
+                        if (!isSubscribed.test(className)) {
+                            return null;
+                        }
+                    } else if (parser.currentToken() == JsonToken.VALUE_STRING && OBJECT_ID.equals(field)) {
+                        objectId = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                break;
+            }
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode: " + e.getMessage(), e);
+        }
+        if (className == null) {
+            throw new DecodeException("Missing " + CLASS_NAME + ": " + message);
+        }
+        return new ParseMessage(className, objectId, message);
+    }
+
+    /**
+     * Tokenizes the whole message of {@link #parse} to find the raw JSON of its objects. The lanes call it before
+     * the lookup, so that the ingress doesn't tokenize all the messages on its own event loop.
+     *
+     * @throws DecodeException if the message isn't valid JSON
+     */
+    void split() {
+        if (raw == null || split) {
+            return;
+        }
+        try (JsonParser parser = JacksonCodec.createParser(raw)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                int start = (int) parser.getTokenLocation().getCharOffset();
+                parser.skipChildren();
+                if (token == JsonToken.START_OBJECT && CURRENT_PARSE_OBJECT.equals(name)) {
+                    currentRaw = raw.substring(start, (int) parser.getCurrentLocation().getCharOffset());
+                } else if (token == JsonToken.START_OBJECT && ORIGINAL_PARSE_OBJECT.equals(name)) {
+                    originalRaw = raw.substring(start, (int) parser.getCurrentLocation().getCharOffset());
+                }
+            }
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode: " + e.getMessage(), e);
+        }
+        split = true;
+    }
+
+    public JsonObject currentParseObject() {
+        if (currentParseObject == null) {
+            split();
+            currentParseObject = new JsonObject(currentRaw);
+        }
+        return currentParseObject;
+    }
+
+    public JsonObject originalParseObject() {
+        if (originalParseObject == null && hasOriginal()) {
+            originalParseObject = new JsonObject(originalRaw);
+        }
+        return originalParseObject;
+    }
+
+    boolean hasOriginal() {
+        split();
+        return originalParseObject != null || originalRaw != null;
+    }
+
+    // Normalized views of the objects, shared by all the queries that are evaluated against this message
+    ParseObjectView current() {
+        if (current == null) {
+            if (raw == null) {
+                current = new ParseObjectView(currentParseObject);
+            } else {
+                split();
+                FieldDictionary dictionary = FieldDictionary.forClass(className);
+                String[] names = dictionary.names();
+                currentFields = select(currentRaw, dictionary, names);
+                current = new ParseObjectView(className, currentFields, names, this::currentParseObject);
+            }
+        }
+        return current;
+    }
+
+    ParseObjectView original() {
+        if (original == null && hasOriginal()) {
+            if (raw == null) {
+                original = new ParseObjectView(originalParseObject);
+            } else {
+                FieldDictionary dictionary = FieldDictionary.forClass(className);
+                String[] names = dictionary.names();
+                original = new ParseObjectView(className, select(originalRaw, dictionary, names), names, this::originalParseObject);
+            }
+        }
+        return original;
+    }
+
+    // Whether a field differs between the original and the current object, each field is compared once
+    boolean isChanged(int field) {
+        if (original() == null) {
+            return true;
+        }
+        if (!current().caches(field) || !original.caches(field)) {
+            // Like the values, not cached for an id that names another field than when the views were created
+            return !Objects.equals(current().get(field), original.get(field));
+        }
+        if (compared == null) {
+            compared = new BitSet();
+            changed = new BitSet();
+        }
+        if (!compared.get(field)) {
+            boolean isChanged = !Objects.equals(current().get(field), original.get(field));
+            if (frozen) {
+                return isChanged;
+            }
+            compared.set(field);
+            changed.set(field, isChanged);
+        }
+        return changed.get(field);
+    }
+
+    // Decodes and compares the fields that the scanned queries read, after that the message is only read
+    // and can be evaluated by several threads at once, other fields are decoded without being cached
+    void freeze(BitSet fields) {
+        current().freeze(fields);
+        if (original() != null) {
+            original.freeze(fields);
+            if (compared == null) {
+                compared = new BitSet();
+                changed = new BitSet();
+            }
+            for (int field = fields.nextSetBit(0); field >= 0; field = fields.nextSetBit(field + 1)) {
+                isChanged(field);
+            }
+        }
+        frozen = true;
+    }
+
+    /**
+     * The keys whose values differ between the original and the current object, with their current values, and
+     * {"__op":"Delete"} for the keys that the save removed. Computed once for all the delta subscriptions, null
+     * when the message has no original object.
+     */
+    JsonObject changes() {
+        if (changes == null && hasOriginal()) {
+            Map<String, Object> current = currentParseObject().getMap();
+            Map<String, Object> original = originalParseObject().getMap();
+            JsonObject o = new JsonObject();
+            current.forEach((key, value) -> {
+                if (!original.containsKey(key) || !Objects.equals(value, original.get(key))) {
+                    o.put(key, value);
+                }
+            });
+            for (String key : original.keySet()) {
+                if (!current.containsKey(key)) {
+                    o.put(key, new JsonObject().put(PARSE_OP, "Delete"));
+                }
+            }
+            changes = o;
+        }
+        return changes;
     }
 
     public boolean isReadableBy(String userId) {
+        ParseACL acl = acl();
         return acl == null || acl.isReadableBy(userId);
     }
 
     public boolean isPubliclyReadable() {
+        ParseACL acl = acl();
         return acl == null || acl.isPubliclyReadable();
     }
+
+    @SuppressWarnings("unchecked")
+    private ParseACL acl() {
+        if (!aclDecoded) {
+            JsonObject o;
+            if (raw == null) {
+                o = currentParseObject.getJsonObject(ACL);
+            } else {
+                current();
+                Object value = currentFields.get(ACL);
+                o = value instanceof Map ? new JsonObject((Map<String, Object>) value) : null;
+            }
+            acl = (o == null) ? null : new ParseACL(o);
+            aclDecoded = true;
+        }
+        return acl;
+    }
+
+    // Decodes the ACL and the fields that have the given names, a snapshot of the dictionary, skips the rest
+    private static Map<String, Object> select(String raw, FieldDictionary dictionary, String[] names) {
+        Map<String, Object> fields = new HashMap<>();
+        try (JsonParser parser = JacksonCodec.createParser(raw)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                int id = dictionary.find(name);
+                if ((id >= 0 && id < names.length && name.equals(names[id])) || ACL.equals(name)) {
+                    fields.put(name, readValue(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            throw new DecodeException("Failed to decode: " + e.getMessage(), e);
+        }
+        return fields;
+    }
+
+    // The same representation as JsonObject#getMap: maps, lists, strings, numbers and booleans
+    private static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(name, readValue(parser));
+                }
+                return map;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new DecodeException("Unexpected token " + parser.currentToken());
+        }
+    }
 }
@@ -0,0 +1,213 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
+import static org.parseplatform.livequery.ParseConstants.DATE;
+import static org.parseplatform.livequery.ParseConstants.ISO;
+import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
+import static org.parseplatform.livequery.ParseConstants.TYPE;
+
+/**
+ * Normalized values of one Parse object, decoded lazily and at most once per field,
+ * no matter how many queries look at them. Fields are addressed by their {@link FieldDictionary} id.
+ * <p>
+ * Normalized values: numbers are widened to Double, Dates become epoch millis as Long
+ * (so they can't be confused with numbers), GeoPoints become {@link GeoPoint},
+ * pointers and other objects with an objectId become that id,
+ * arrays are normalized element-wise. A missing field is {@link #ABSENT}, an explicit null is null.
+ * <p>
+ * A view is not thread safe, it belongs to the thread that handles the message,
+ * until it is frozen: then it is only read and can be shared.
+ * <p>
+ * The values are cached for the names that the ids had when the view was created. An id that was reclaimed and
+ * given to another field since then, see {@link FieldDictionary}, is decoded again each time it is read.
+ */
+final class ParseObjectView {
+    static final Object ABSENT = new Object();
+    private static final Object UNDECODED = new Object();
+
+    final String className;
+    private final Map<String, Object> fields;
+    // Fields with a smaller id are all in "fields", the others are read from the complete object
+    private final int selected;
+    private final Supplier<JsonObject> object;
+    private final FieldDictionary dictionary;
+    // The names of the dictionary that the values are cached for
+    private String[] names;
+    // The fields of the complete object, once decoded, never modified
+    private volatile Map<String, Object> objectMap;
+    private Object[] values;
+    // The tokens of string fields for $text, by field and tokenization, see tokens()
+    private Map<Integer, List<String>> tokens;
+    private boolean frozen;
+
+    ParseObjectView(JsonObject object) {
+        this(object.getString(CLASS_NAME), object.getMap(), null, null);
+    }
+
+    // A view of the fields of an object that have the given names, a snapshot of the names of the dictionary, or of all
+    // its fields if the names are null. The complete object is only decoded when another field is read.
+    ParseObjectView(String className, Map<String, Object> fields, String[] names, Supplier<JsonObject> object) {
+        this.className = className;
+        this.fields = fields;
+        this.object = object;
+        dictionary = FieldDictionary.forClass(className);
+        this.names = names == null ? dictionary.names() : names;
+        selected = names == null ? Integer.MAX_VALUE : names.length;
+        values = new Object[this.names.length];
+        Arrays.fill(values, UNDECODED);
+    }
+
+    Object get(String field) {
+        return get(dictionary.id(field));
+    }
+
+    Object get(int field) {
+        if (field >= values.length && !frozen) {
+            extend();
+        }
+        if (!caches(field)) {
+            return decode(currentName(field), false);
+        }
+        Object value = values[field];
+        if (value == UNDECODED) {
+            value = decode(names[field], field < selected);
+            if (!frozen) {
+                values[field] = value;
+            }
+        }
+        return value;
+    }
+
+    // Whether the value of an id is cached: it still names the field that it named when the view was created
+    boolean caches(int field) {
+        return field < names.length && names[field] == dictionary.name(field);
+    }
+
+    // Fields were interned after the view was created, their values are cached too unless ids were reclaimed meanwhile
+    private void extend() {
+        String[] current = dictionary.names();
+        if (current.length <= names.length) {
+            return;
+        }
+        for (int id = 0; id < names.length; id++) {
+            if (names[id] != current[id]) {
+                return;
+            }
+        }
+        int length = values.length;
+        values = Arrays.copyOf(values, current.length);
+        Arrays.fill(values, length, values.length, UNDECODED);
+        names = current;
+    }
+
+    // The ids of the callers are those of the current dictionary of the class, a new one if it was dropped
+    private String currentName(int field) {
+        return (dictionary.isRetired() ? FieldDictionary.forClass(className) : dictionary).name(field);
+    }
+
+    // The tokens of a string field, tokenized once per message for all the $text queries, null if it isn't a string
+    List<String> tokens(int field, boolean caseSensitive, boolean diacriticSensitive) {
+        Object value = get(field);
+        if (!(value instanceof String)) {
+            return null;
+        }
+        if (!caches(field)) {
+            return TextSearch.tokenize((String) value, caseSensitive, diacriticSensitive);
+        }
+        if (tokens == null) {
+            // Frozen views are shared by the threads of the parallel scan
+            tokens = frozen ? new ConcurrentHashMap<>() : new HashMap<>();
+        }
+        int key = field * 4 + (caseSensitive ? 2 : 0) + (diacriticSensitive ? 1 : 0);
+        return tokens.computeIfAbsent(key, k -> TextSearch.tokenize((String) value, caseSensitive, diacriticSensitive));
+    }
+
+    // Decodes the given fields, from then on the others are decoded without being cached
+    void freeze(BitSet fields) {
+        for (int field = fields.nextSetBit(0); field >= 0; field = fields.nextSetBit(field + 1)) {
+            get(field);
+        }
+        tokens = tokens == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(tokens);
+        frozen = true;
+    }
+
+    private Object decode(String name, boolean isSelected) {
+        Map<String, Object> map = isSelected ? fields : objectMap();
+        Object raw = map.get(name);
+        return (raw == null && !map.containsKey(name)) ? ABSENT : normalize(raw);
+    }
+
+    // The complete object is decoded once, even by the threads that share a frozen view. Only the first read
+    // takes the lock, the others read the field, so that the threads of the parallel scan don't serialize here.
+    private Map<String, Object> objectMap() {
+        if (object == null) {
+            return fields;
+        }
+        Map<String, Object> map = objectMap;
+        if (map == null) {
+            synchronized (this) {
+                map = objectMap;
+                if (map == null) {
+                    map = object.get().getMap();
+                    objectMap = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    static Object normalize(Object value) {
+        if (value instanceof Number) {
+            return value instanceof Double ? value : (Object) ((Number) value).doubleValue();
+        }
+        if (value instanceof JsonObject) {
+            value = ((JsonObject) value).getMap();
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (DATE.equals(map.get(TYPE))) {
+                Long millis = parseDate(map.get(ISO));
+                return millis == null ? map : millis;
+            }
+            if (GeoPoint.isGeoPoint(map)) {
+                return GeoPoint.of(map);
+            }
+            Object objectId = map.get(OBJECT_ID);
+            return objectId != null ? objectId : map;
+        }
+        if (value instanceof JsonArray) {
+            value = ((JsonArray) value).getList();
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> normalized = new ArrayList<>(list.size());
+            for (int i = 0; i < list.size(); i++) {
+                normalized.add(normalize(list.get(i)));
+            }
+            return normalized;
+        }
+        return value;
+    }
+
+    private static Long parseDate(Object iso) {
+        try {
+            return iso instanceof String ? Instant.parse((String) iso).toEpochMilli() : null;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
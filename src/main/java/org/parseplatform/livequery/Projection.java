@@ -0,0 +1,107 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
+import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
+import static org.parseplatform.livequery.ParseConstants.UPDATED_AT;
+
+/**
+ * The "fields" of a subscription: the keys of the object that are pushed to the client.
+ * Projections with the same keys are equal regardless of their order.
+ * <p>
+ * A delta projection pushes only the keys that changed in update events, along with the keys that identify the
+ * object, see {@link ParseMessage#changes()}. Other events carry the whole (projected) object.
+ */
+final class Projection {
+    static final Projection ALL = new Projection(null, false);
+    private static final String[] IDENTITY = {CLASS_NAME, OBJECT_ID, UPDATED_AT};
+
+    private final Set<String> keys;
+    private final boolean delta;
+
+    private Projection(Set<String> keys, boolean delta) {
+        this.keys = keys;
+        this.delta = delta;
+    }
+
+    static Projection of(JsonArray fields) {
+        return of(fields, false);
+    }
+
+    static Projection of(JsonArray fields, boolean delta) {
+        if (fields == null) {
+            return delta ? new Projection(null, true) : ALL;
+        }
+        Set<String> keys = new TreeSet<>();
+        for (Object field : fields) {
+            keys.add((String) field);
+        }
+        return new Projection(keys, delta);
+    }
+
+    // The object that the clients of this projection receive for an event of the message
+    JsonObject apply(ParseMessage message, Event event) {
+        if (!isDelta(message, event)) {
+            return apply(message.currentParseObject());
+        }
+        JsonObject changes = message.changes();
+        JsonObject current = message.currentParseObject();
+        JsonObject o = new JsonObject();
+        for (String key : IDENTITY) {
+            if (current.containsKey(key)) {
+                o.put(key, current.getValue(key));
+            }
+        }
+        for (Map.Entry<String, Object> change : changes) {
+            if (keys == null || keys.contains(change.getKey())) {
+                o.put(change.getKey(), change.getValue());
+            }
+        }
+        return o;
+    }
+
+    // Whether the object of the event carries only the keys that changed, which a later update doesn't supersede
+    boolean isDelta(ParseMessage message, Event event) {
+        return delta && event == Event.update && message.changes() != null;
+    }
+
+    JsonObject apply(JsonObject parseObject) {
+        if (keys == null || parseObject == null) {
+            return parseObject;
+        }
+        JsonObject o = new JsonObject();
+        for (String key : keys) {
+            o.put(key, parseObject.getValue(key));
+        }
+        return o;
+    }
+
+    @Override
+    public int hashCode() {
+        return (keys == null ? 0 : keys.hashCode()) + (delta ? 1 : 0);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Projection)) {
+            return false;
+        }
+        Projection other = (Projection) obj;
+        return delta == other.delta && (keys == null ? other.keys == null : keys.equals(other.keys));
+    }
+
+    @Override
+    public String toString() {
+        String s = keys == null ? "*" : keys.toString();
+        return delta ? s + " (delta)" : s;
+    }
+}
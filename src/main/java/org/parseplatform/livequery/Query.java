@@ -2,14 +2,12 @@ package org.parseplatform.livequery;
 
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.regex.Pattern;
 
 import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
 import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
@@ -20,160 +18,139 @@ import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
     "query":{"className":"sharedSong","where":{"objectId":"CqjsImPeAd"}}}
  */
 class Query {
-    private static final Logger LOGGER = LoggerFactory.getLogger(Query.class);
     private static final String WHERE = "where";
     private static final String FIELDS = "fields";
-    private static final String $OR = "$or";
-    private final JsonObject where;
     private final JsonObject query;
+    private final JsonObject where;
+    private final String canonical;
+    private final long fingerprint;
+    private final Matcher matcher;
+    private final FieldDictionary dictionary;
+    // The generation of the dictionary that the matcher was compiled with
+    private final int generation;
+    private final Entry predicate;
+    private final List<Entry> equalities = new ArrayList<>();
+    // Ids of the fields that the query reads
+    private final BitSet referencedFields = new BitSet();
     final JsonArray fields;
     final String className;
-    private static final Map<String, Matcher> matchers = new HashMap<>();
-
-    static {
-        matchers.put("$exists", (o, key, expected) -> (Boolean) expected == o.containsKey(key));
-        matchers.put("$ne", (o, key, expected) -> {
-            Object value = o.getValue(key);
-            return (expected == null && value != null) || (expected != null && !expected.equals(value));
-        });
-        matchers.put("$gt", (o, key, expected) -> {
-            Number value = (Number) o.getValue(key);
-            return value != null && (value.doubleValue() > ((Number) expected).doubleValue());
-        });
-        matchers.put("$gte", (o, key, expected) -> {
-            Number value = (Number) o.getValue(key);
-            return value != null && (value.doubleValue() >= ((Number) expected).doubleValue());
-        });
-        matchers.put("$lt", (o, key, expected) -> {
-            Number value = (Number) o.getValue(key);
-            return value != null && (value.doubleValue() < ((Number) expected).doubleValue());
-        });
-        matchers.put("$lte", (o, key, expected) -> {
-            Number value = (Number) o.getValue(key);
-            return value != null && (value.doubleValue() <= ((Number) expected).doubleValue());
-        });
-        matchers.put("$in", (o, key, expected) -> {
-            Object value = o.getValue(key);
-            return ((JsonArray) expected).contains(value);
-        });
-        matchers.put("$nin", (o, key, expected) -> {
-            Object value = o.getValue(key);
-            return !((JsonArray) expected).contains(value);
-        });
-        // TODO: regex compilation can be done once
-        matchers.put("$regex", (o, key, expected) -> {
-            String value = o.getString(key);
-            Pattern p = Pattern.compile((String) expected);
-            return p.matcher(value).find();
-        });
-        matchers.put("$all", (o, key, expected) -> {
-            Set<Object> exp = new HashSet<Object>(((JsonArray) expected).getList());
-            Set<Object> actual = new HashSet<Object>(o.getJsonArray(key).getList());
-            return exp.equals(actual);
-        });
-    }
-
-    interface Matcher {
-        boolean matches(JsonObject o, String key, Object value);
-    }
 
     Query(JsonObject o) {
         query = o;
         className = o.getString(ParseConstants.CLASS_NAME);
         fields = o.getJsonArray(FIELDS);
-        where = o.getJsonObject(WHERE);
+        where = QueryNormalizer.normalize(o.getJsonObject(WHERE, new JsonObject()));
+        canonical = className + where.encode();
+        fingerprint = QueryNormalizer.fingerprint(canonical);
+        dictionary = FieldDictionary.forClass(className);
+        generation = dictionary.generation();
+        matcher = Matcher.compile(where, dictionary);
+        predicate = simplePredicate(where);
+        matcher.collectEqualities(equalities);
+        matcher.collectFields(referencedFields);
     }
 
-    public boolean isSimple() {
-        Object value = where.iterator().next().getValue();
-        return where.size() == 1 && where.getValue($OR) == null &&
-            (!(value instanceof JsonObject) || ((JsonObject) value).containsKey(CLASS_NAME));
-    }
-
-    public Map.Entry<String, Object> getPredicate() {
-        if (!isSimple()) {
+    // A "simple" query is an equality of one field to a scalar or to a pointer,
+    // the value is normalized like the values of a ParseObjectView
+    private static Entry simplePredicate(JsonObject where) {
+        if (where.size() != 1 || where.containsKey(Matcher.$OR) || where.containsKey(Matcher.$AND)) {
             return null;
         }
-        Map.Entry<String, Object> predicate = where.iterator().next();
-        Object value = predicate.getValue();
+        Map.Entry<String, Object> entry = where.iterator().next();
+        Object value = entry.getValue();
         if (value instanceof JsonObject) {
+            if (!((JsonObject) value).containsKey(CLASS_NAME)) {
+                return null;
+            }
             value = ((JsonObject) value).getString(OBJECT_ID);
-            predicate = new Entry(predicate.getKey(), value);
         }
+        return value == null ? null : new Entry(entry.getKey(), ParseObjectView.normalize(value));
+    }
+
+    public boolean isSimple() {
+        return predicate != null;
+    }
+
+    public Map.Entry<String, Object> getPredicate() {
         return predicate;
     }
 
-    public boolean matches(JsonObject o) {
-        if (o == null || !className.equals(o.getString(CLASS_NAME))) {
-            return false;
-        }
-        if (isSimple()) {
-            return simpleMatch(o);
-        }
+    // Equality predicates (with pointers resolved to their objectId) that are required for a match
+    public List<Entry> getEqualities() {
+        return equalities;
+    }
 
-        if (where.containsKey($OR)) {
-            return orMatch(o);
-        } else {
-            // AND match, must satisfy all conditions
-            for (Map.Entry<String, Object> entry : where) {
-                if (!checkCondition(o, entry)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+    // (field, value) pairs under which the query can be indexed, see Matcher#indexKeys
+    public List<Entry> getIndexKeys(Comparator<List<Entry>> preference) {
+        return matcher.indexKeys(preference);
     }
 
-    private boolean simpleMatch(JsonObject o) {
-        Map.Entry<String, Object> entry = getPredicate();
-        Object value = o.getValue(entry.getKey());
-        if (value instanceof JsonObject) {
-            value = ((JsonObject) value).getString(OBJECT_ID);
-        }
-        return entry.getValue().equals(value);
-    }
-
-    private boolean orMatch(JsonObject o) {
-        JsonArray conditions = where.getJsonArray($OR);
-        for (Object condition : conditions) {
-            if (condition instanceof JsonObject) {
-                boolean matches = true;
-                for (Map.Entry<String, Object> entry : ((JsonObject) condition)) {
-                    matches = checkCondition(o, entry);
-                    if (!matches) {
-                        break;
-                    }
-                }
-                if (matches) {
-                    return true;
-                }
-            } else {
-                LOGGER.warn("Unexpected condition: {}", condition);
-            }
-        }
-        return false;
+    // Range condition under which the query can be indexed, or null
+    public Matcher.Range getRange() {
+        return matcher.rangeCondition();
+    }
+
+    // Geo condition under which the query can be indexed, or null
+    public Matcher.Geo getGeo() {
+        return matcher.geoCondition();
+    }
+
+    // Full text condition under which the query can be indexed, or null
+    public Matcher.Text getText() {
+        return matcher.textCondition();
+    }
+
+    // Regex with a required literal under which the query can be indexed, or null
+    public Matcher.Regex getRegex() {
+        return matcher.regexCondition();
+    }
+
+    BitSet referencedFields() {
+        return referencedFields;
+    }
+
+    // Holds the ids of the fields while the query is registered, false if some were reclaimed since it was compiled
+    boolean hold() {
+        return dictionary.hold(generation, referencedFields);
     }
 
-    private boolean checkCondition(JsonObject o, Map.Entry<String, Object> entry) {
-        String key = entry.getKey();
-        Object expected = entry.getValue();
-        if (expected instanceof JsonObject) {
-            Map.Entry<String, Object> opAndVal = ((JsonObject) expected).iterator().next();
-            String op = opAndVal.getKey();
-            if (!matchers.containsKey(op)) {
-                LOGGER.warn("Unsupported operator {}", op);
+    void release() {
+        dictionary.release(referencedFields);
+    }
+
+    // An equal query, compiled with the current ids of its fields
+    Query recompile() {
+        return new Query(query);
+    }
+
+    // Whether none of the fields that the query reads changed between the original and the current object
+    boolean isUnchangedBy(ParseMessage message) {
+        for (int field = referencedFields.nextSetBit(0); field >= 0; field = referencedFields.nextSetBit(field + 1)) {
+            if (message.isChanged(field)) {
                 return false;
             }
-            return matchers.get(op).matches(o, key, opAndVal.getValue());
-        } else {
-            Object value = o.getValue(key);
-            return (expected == null && value == null) || (expected != null && expected.equals(value));
         }
+        return true;
+    }
+
+    public boolean matches(JsonObject o) {
+        return o != null && matches(new ParseObjectView(o));
+    }
+
+    boolean matches(ParseObjectView o) {
+        return o != null && className.equals(o.className) && matcher.matches(o);
+    }
+
+    // 64-bit hash of the canonical form
+    public long getFingerprint() {
+        return fingerprint;
     }
 
+    // Queries with the same canonical form are equal, even if they differ in their fields,
+    // they share one subscription
     @Override
     public int hashCode() {
-        return query.hashCode();
+        return (int) (fingerprint ^ (fingerprint >>> 32));
     }
 
     @Override
@@ -184,7 +161,8 @@ class Query {
         if (!(obj instanceof Query)) {
             return false;
         }
-        return query.equals(((Query) obj).query);
+        Query other = (Query) obj;
+        return fingerprint == other.fingerprint && canonical.equals(other.canonical);
     }
 
     @Override
@@ -0,0 +1,166 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.parseplatform.livequery.ParseConstants.CLASS_NAME;
+import static org.parseplatform.livequery.ParseConstants.DATE;
+import static org.parseplatform.livequery.ParseConstants.ISO;
+import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
+import static org.parseplatform.livequery.ParseConstants.POINTER;
+import static org.parseplatform.livequery.ParseConstants.TYPE;
+
+/**
+ * Rewrites a "where" clause into a canonical form, so that logically equal queries
+ * serialized differently by different SDKs are equal:
+ * keys are sorted, $or/$and of one element are inlined, $eq and {"$in":[x]} become an equality,
+ * set operands ($in, $nin, $all, $or) are sorted and deduplicated, and pointers keep only their identity.
+ */
+final class QueryNormalizer {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private QueryNormalizer() {
+    }
+
+    static JsonObject normalize(JsonObject where) {
+        Map<String, Object> conditions = new TreeMap<>();
+        Map<String, JsonArray> inlined = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : where) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if ((Matcher.$OR.equals(key) || Matcher.$AND.equals(key)) && value instanceof JsonArray) {
+                JsonArray list = normalizeList((JsonArray) value);
+                if (list.size() == 1 || Matcher.$AND.equals(key)) {
+                    inlined.put(key, list);
+                } else {
+                    conditions.put(key, list);
+                }
+            } else {
+                conditions.put(key, normalizeCondition(value));
+            }
+        }
+        // A single alternative, or a conjunction, can be merged into the enclosing conjunction
+        for (Map.Entry<String, JsonArray> entry : inlined.entrySet()) {
+            JsonArray list = entry.getValue();
+            boolean collides = false;
+            for (Object condition : list) {
+                if (!(condition instanceof JsonObject)) {
+                    collides = true;
+                    continue;
+                }
+                for (String key : ((JsonObject) condition).fieldNames()) {
+                    collides |= conditions.containsKey(key);
+                }
+            }
+            if (collides || !distinctKeys(list)) {
+                conditions.put(entry.getKey(), list);
+            } else {
+                for (Object condition : list) {
+                    conditions.putAll(((JsonObject) condition).getMap());
+                }
+            }
+        }
+        return sorted(conditions);
+    }
+
+    static long fingerprint(String canonical) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < canonical.length(); i++) {
+            hash ^= canonical.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static boolean distinctKeys(JsonArray list) {
+        Set<String> keys = new HashSet<>();
+        for (Object condition : list) {
+            for (String key : ((JsonObject) condition).fieldNames()) {
+                if (!keys.add(key)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static JsonArray normalizeList(JsonArray list) {
+        List<Object> conditions = new ArrayList<>();
+        for (Object condition : list) {
+            conditions.add(condition instanceof JsonObject ? normalize((JsonObject) condition) : condition);
+        }
+        return sortedSet(conditions);
+    }
+
+    private static Object normalizeCondition(Object value) {
+        if (!(value instanceof JsonObject)) {
+            return value;
+        }
+        JsonObject o = (JsonObject) value;
+        if (Matcher.isPointer(o) || Matcher.isDate(o)) {
+            return normalizeValue(o);
+        }
+        if (o.size() == 1 && o.containsKey("$eq")) {
+            return normalizeCondition(o.getValue("$eq"));
+        }
+        if (o.size() == 1 && o.getValue("$in") instanceof JsonArray && o.getJsonArray("$in").size() == 1) {
+            return normalizeValue(o.getJsonArray("$in").getValue(0));
+        }
+        Map<String, Object> operators = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : o) {
+            String op = entry.getKey();
+            Object operand = entry.getValue();
+            if (operand instanceof JsonArray && ("$in".equals(op) || "$nin".equals(op) || "$all".equals(op))) {
+                List<Object> values = new ArrayList<>();
+                for (Object element : (JsonArray) operand) {
+                    values.add(normalizeValue(element));
+                }
+                operators.put(op, sortedSet(values));
+            } else {
+                operators.put(op, normalizeValue(operand));
+            }
+        }
+        return sorted(operators);
+    }
+
+    // Pointers keep only their identity, Dates only their value
+    private static Object normalizeValue(Object value) {
+        if (!(value instanceof JsonObject)) {
+            return value;
+        }
+        JsonObject o = (JsonObject) value;
+        if (Matcher.isPointer(o)) {
+            return new JsonObject().
+                put(TYPE, POINTER).
+                put(CLASS_NAME, o.getValue(CLASS_NAME)).
+                put(OBJECT_ID, o.getValue(OBJECT_ID));
+        }
+        if (Matcher.isDate(o)) {
+            return new JsonObject().put(TYPE, DATE).put(ISO, o.getValue(ISO));
+        }
+        return normalizeCondition(o);
+    }
+
+    private static JsonObject sorted(Map<String, Object> entries) {
+        JsonObject o = new JsonObject();
+        entries.forEach(o::put);
+        return o;
+    }
+
+    private static JsonArray sortedSet(List<Object> values) {
+        Map<String, Object> byEncoding = new TreeMap<>();
+        for (Object value : values) {
+            byEncoding.put(Json.encode(value), value);
+        }
+        return new JsonArray(new ArrayList<>(byEncoding.values()));
+    }
+}
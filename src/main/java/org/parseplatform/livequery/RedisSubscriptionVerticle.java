@@ -1,45 +1,93 @@
 package org.parseplatform.livequery;
 
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.Future;
+import io.vertx.core.json.DecodeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
-import static org.parseplatform.livequery.ParseConstants.AFTER_DELETE;
-import static org.parseplatform.livequery.ParseConstants.AFTER_SAVE;
-
-// Redis subscriber
+// A dispatch lane: matches the messages of its lane and pushes their events, in order, on its event loop
 public class RedisSubscriptionVerticle extends AbstractVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(RedisSubscriptionVerticle.class);
-    private static final String BASE = "io.vertx.redis.";
+    // Idle lookup buffers kept by a lane, so that the lanes together hold few of the MatchBuffer slots
+    private static final int MAX_IDLE_BUFFERS = 1;
     private final SubscriptionRegistry subscriptionRegistry = SubscriptionRegistry.getInstance();
+    private final DispatchLanes lanes;
+    // Lookups may complete out of order, the events are dispatched in the order of the messages
+    private Future<?> dispatched = Future.succeededFuture();
+    // Lookup buffers that aren't in use, there are more only while async lookups overlap
+    private final Deque<MatchBuffer> buffers = new ArrayDeque<>();
+
+    public RedisSubscriptionVerticle(DispatchLanes lanes) {
+        this.lanes = lanes;
+    }
 
     @Override
     public void start() {
-        String appId = config().getString(ConfigKey.APP_ID);
-        vertx.eventBus().consumer(BASE + appId + AFTER_SAVE, this::onAfterSave);
-        vertx.eventBus().consumer(BASE + appId + AFTER_DELETE, this::onAfterDelete);
+        int parallelScanThreshold = config().getInteger(ConfigKey.PARALLEL_SCAN_THRESHOLD, 0);
+        if (parallelScanThreshold > 0) {
+            subscriptionRegistry.enableParallelScan(parallelScanThreshold, config().getInteger(ConfigKey.PARALLEL_SCAN_THREADS, 1));
+        }
+        int lane = lanes.join((message, deleted, done) -> {
+            try {
+                message.split();
+            } catch (DecodeException e) {
+                LOGGER.error("Cannot parse the message of {} {}", message.className, message.objectId, e);
+                done.run();
+                return;
+            }
+            if (deleted) {
+                onAfterDelete(message, done);
+            } else {
+                onAfterSave(message, done);
+            }
+        });
+        LOGGER.info("Dispatching lane {} of {}", lane, lanes.size());
     }
 
-    private void onAfterSave(Message<JsonObject> message) {
-        LOGGER.debug("onAfterSave {}", message.body());
-        ParseMessage o = ParseMessage.create(message);
-        Set<Subscription> subscriptions = subscriptionRegistry.findSubscriptions(o);
-        for (Subscription subscription : subscriptions) {
-            subscription.afterSave(o, vertx.eventBus());
-        }
+    private void onAfterSave(ParseMessage o, Runnable done) {
+        MatchBuffer buffer = takeBuffer();
+        Future<MatchBuffer> found = subscriptionRegistry.findAfterSaveAsync(o, buffer);
+        dispatched = dispatched.transform(ar -> found).onSuccess(matches -> {
+            for (int i = 0; i < matches.size(); i++) {
+                matches.subscription(i).afterSave(o, matches.event(i), vertx.eventBus());
+            }
+        }).onFailure(e -> LOGGER.error("afterSave lookup failed", e)).
+            onComplete(ar -> {
+                returnBuffer(buffer);
+                done.run();
+            });
     }
 
-    private void onAfterDelete(Message<JsonObject> message) {
-        LOGGER.debug("onAfterDelete {}", message.body());
-        ParseMessage o = ParseMessage.create(message);
-        Set<Subscription> subscriptions = subscriptionRegistry.findSubscriptions(o);
-        for (Subscription subscription : subscriptions) {
-            subscription.afterDelete(o, vertx.eventBus());
-        }
+    private void onAfterDelete(ParseMessage o, Runnable done) {
+        MatchBuffer buffer = takeBuffer();
+        Future<MatchBuffer> found = subscriptionRegistry.findAfterDeleteAsync(o, buffer);
+        dispatched = dispatched.transform(ar -> found).onSuccess(matches -> {
+            for (int i = 0; i < matches.size(); i++) {
+                matches.subscription(i).afterDelete(o, vertx.eventBus());
+            }
+        }).onFailure(e -> LOGGER.error("afterDelete lookup failed", e)).
+            onComplete(ar -> {
+                returnBuffer(buffer);
+                done.run();
+            });
+    }
+
+    private MatchBuffer takeBuffer() {
+        MatchBuffer buffer = buffers.poll();
+        return buffer == null ? new MatchBuffer() : buffer;
     }
 
+    // The extra buffers give their slot back, otherwise a burst of async lookups would take all the slots for good
+    private void returnBuffer(MatchBuffer buffer) {
+        if (buffers.size() < MAX_IDLE_BUFFERS) {
+            buffer.clear();
+            buffers.push(buffer);
+        } else {
+            buffer.release();
+        }
+    }
 }
@@ -2,14 +2,23 @@ package org.parseplatform.livequery;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Promise;
+import io.vertx.core.json.DecodeException;
 import io.vertx.redis.client.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+// Redis subscriber, hands each message over to the dispatch lane of its object
 public class RedisVerticle extends AbstractVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(RedisVerticle.class);
+    private static final String MESSAGE = "message";
+    private final SubscriptionRegistry subscriptionRegistry = SubscriptionRegistry.getInstance();
+    private final DispatchLanes lanes;
+
+    public RedisVerticle(DispatchLanes lanes) {
+        this.lanes = lanes;
+    }
 
     @Override
     public void start(Promise<Void> startPromise) {
@@ -18,21 +27,24 @@ public class RedisVerticle extends AbstractVerticle {
             if (onConnect.succeeded()) {
                 final AtomicInteger count = new AtomicInteger();
                 final RedisConnection connection = onConnect.result();
+                String appId = config().getString(ConfigKey.APP_ID);
+                final String afterSave = appId + ParseConstants.AFTER_SAVE;
+                final String afterDelete = appId + ParseConstants.AFTER_DELETE;
                 connection.handler(response -> {
-                    if (!(response.type() == ResponseType.MULTI && "subscribe".equals(response.get(0).toString()))) {
+                    if (response.type() != ResponseType.MULTI) {
                         return;
                     }
-                    String channel = response.get(1).toString();
-                    LOGGER.info("Subscribed to {}", channel);
-                    if (count.incrementAndGet() == 2) {
-                        LOGGER.debug("Subscribed to both channels");
-                        connection.handler(null);
-                        startPromise.complete();
+                    String type = response.get(0).toString();
+                    if (MESSAGE.equals(type)) {
+                        onMessage(response.get(2).toString(), afterDelete.equals(response.get(1).toString()));
+                    } else if ("subscribe".equals(type)) {
+                        LOGGER.info("Subscribed to {}", response.get(1));
+                        if (count.incrementAndGet() == 2) {
+                            LOGGER.debug("Subscribed to both channels");
+                            startPromise.complete();
+                        }
                     }
                 });
-                String appId = config().getString(ConfigKey.APP_ID);
-                final String afterSave = appId + ParseConstants.AFTER_SAVE;
-                final String afterDelete = appId + ParseConstants.AFTER_DELETE;
                 connection.send(Request.cmd(Command.SUBSCRIBE).arg(afterSave).arg(afterDelete), onSubscribe -> {
                     if (onSubscribe.failed()) {
                         LOGGER.error("Subscription failed", onSubscribe.cause());
@@ -45,4 +57,20 @@ public class RedisVerticle extends AbstractVerticle {
             }
         });
     }
+
+    // Only the className and objectId are read here, the lane tokenizes the rest of the message. The messages of
+    // classes that nobody subscribes to are dropped.
+    private void onMessage(String message, boolean deleted) {
+        LOGGER.debug("onMessage {}", message);
+        ParseMessage o;
+        try {
+            o = ParseMessage.parse(message, subscriptionRegistry::hasSubscriptions);
+        } catch (DecodeException e) {
+            LOGGER.error("Cannot parse {}", message, e);
+            return;
+        }
+        if (o != null) {
+            lanes.dispatch(o, deleted);
+        }
+    }
 }
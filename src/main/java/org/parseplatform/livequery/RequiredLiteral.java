@@ -0,0 +1,153 @@
+package org.parseplatform.livequery;
+
+import java.util.regex.Pattern;
+
+/**
+ * Finds a literal substring that every match of a regular expression contains.
+ * The analysis is conservative: constructs it doesn't understand end the current literal,
+ * and when the literal can't be proven required (alternation, inline flags, comments) there's none.
+ */
+final class RequiredLiteral {
+    private RequiredLiteral() {
+    }
+
+    // The longest required literal, case folded for case insensitive patterns; null if there's none
+    static String of(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.COMMENTS | Pattern.LITERAL | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+        boolean foldCase = (pattern.flags() & Pattern.CASE_INSENSITIVE) != 0;
+        String regex = pattern.pattern();
+        String longest = "";
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int end;
+            if (c == '\\' && i + 1 < regex.length() && regex.charAt(i + 1) == 'Q') {
+                end = regex.indexOf("\\E", i + 2);
+                end = end < 0 ? regex.length() : end;
+                run.append(regex, i + 2, end);
+                i = Math.min(regex.length(), end + 2);
+            } else if (c == '\\' && i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                run.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (c == '|') {
+                return null;
+            } else if (c == '(' || c == '[') {
+                if (c == '(' && i + 2 < regex.length() && regex.charAt(i + 1) == '?' &&
+                    (Character.isLetter(regex.charAt(i + 2)) || regex.charAt(i + 2) == '-')) {
+                    return null;
+                }
+                longest = longer(longest, run);
+                run.setLength(0);
+                i = skipGroup(regex, i);
+                if (i < 0) {
+                    return null;
+                }
+                i = skipQuantifier(regex, i);
+                continue;
+            } else if (c == '\\' || ".^$)]*+?{".indexOf(c) >= 0) {
+                // Character classes, anchors and back references
+                longest = longer(longest, run);
+                run.setLength(0);
+                if (c == '\\') {
+                    if (i + 1 >= regex.length() || "dDsSwWbBAGZzRXhHvVtnrfae123456789".indexOf(regex.charAt(i + 1)) < 0) {
+                        // Hex, unicode, property and control escapes have operands that would pass for literals
+                        return null;
+                    }
+                    i += 2;
+                    while (Character.isDigit(regex.charAt(i - 1)) && i < regex.length() && Character.isDigit(regex.charAt(i))) {
+                        i++;
+                    }
+                } else {
+                    i++;
+                }
+                i = skipQuantifier(regex, i);
+                continue;
+            } else {
+                run.append(c);
+                i++;
+            }
+            // A quantifier applies to the last character only
+            if (i < regex.length() && "*?{+".indexOf(regex.charAt(i)) >= 0) {
+                if (regex.charAt(i) != '+') {
+                    run.setLength(Math.max(0, run.length() - 1));
+                }
+                longest = longer(longest, run);
+                run.setLength(0);
+                i = skipQuantifier(regex, i);
+            }
+        }
+        longest = longer(longest, run);
+        if (longest.isEmpty() || (foldCase && longest.codePointCount(0, longest.length()) != longest.length())) {
+            // Supplementary characters aren't folded per char
+            return null;
+        }
+        return foldCase ? fold(longest) : longest;
+    }
+
+    // Case folding that agrees with Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static String longer(String longest, StringBuilder run) {
+        return run.length() > longest.length() ? run.toString() : longest;
+    }
+
+    // Index after the group or character class that starts at i, -1 if it isn't closed
+    private static int skipGroup(String regex, int i) {
+        int depth = 0;
+        // Character classes nest, as in [a-z&&[^aeiou]]
+        int classDepth = 0;
+        for (; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                classDepth++;
+                // A ']' right after '[' or '[^' is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (classDepth > 0) {
+                if (c == ']' && --classDepth == 0 && depth == 0) {
+                    return i + 1;
+                }
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipQuantifier(String regex, int i) {
+        if (i < regex.length() && regex.charAt(i) == '{') {
+            int end = regex.indexOf('}', i);
+            i = end < 0 ? regex.length() : end + 1;
+        } else if (i < regex.length() && "*?+".indexOf(regex.charAt(i)) >= 0) {
+            i++;
+        } else {
+            return i;
+        }
+        // Lazy or possessive
+        if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+            i++;
+        }
+        return i;
+    }
+}
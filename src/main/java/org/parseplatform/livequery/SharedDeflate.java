@@ -0,0 +1,121 @@
+package org.parseplatform.livequery;
+
+import com.codahale.metrics.MetricRegistry;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.vertx.core.http.ServerWebSocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate (RFC 7692) of payloads that are compressed once and shared by all of their recipients.
+ * <p>
+ * A message is a sequence of byte aligned DEFLATE blocks: the header of each recipient (clientId, requestId) is a
+ * stored block, and the payload is deflated with a sync flush by a fresh deflater, so it never refers to the bytes
+ * before it and can follow any header. The frames are written with RSV1 set, which Netty's encoder passes through
+ * as already compressed. All the frames of such a client have to be compressed here, since the history of Netty's
+ * encoder would miss them.
+ */
+final class SharedDeflate {
+    // A stored block starts with 3 header bits padded to a byte, LEN and its complement
+    static final int STORED_HEADER = 5;
+    private static final int MAX_STORED = 0xffff;
+    // The empty stored block of a sync flush, every message ends with it and is sent without its last 4 bytes
+    private static final byte[] SYNC = {0, 0, 0, (byte) 0xff, (byte) 0xff};
+    private static final int TAIL = 4;
+    private static final ThreadLocal<Deflating> DEFLATERS = new ThreadLocal<>();
+
+    private SharedDeflate() {
+    }
+
+    // Whether the client negotiated permessage-deflate, with the default window of the server
+    static boolean negotiated(ServerWebSocket ws) {
+        String offer = ws.headers().get(HttpHeaderNames.SEC_WEBSOCKET_EXTENSIONS);
+        if (offer == null || offer.contains("server_max_window_bits")) {
+            return false;
+        }
+        return new WebSocketChannel(ws).hasDeflateEncoder();
+    }
+
+    // The payload deflated with a sync flush
+    static ByteBuf deflate(ByteBuf payload, int level, MetricRegistry metrics) {
+        long start = System.nanoTime();
+        Deflating deflating = DEFLATERS.get();
+        if (deflating == null || deflating.level != level) {
+            // A changed level would apply to part of the input only
+            deflating = new Deflating(level);
+            DEFLATERS.set(deflating);
+        }
+        Deflater deflater = deflating.deflater;
+        byte[] input = ByteBufUtil.getBytes(payload);
+        deflater.setInput(input);
+        ByteBuf deflated = PooledByteBufAllocator.DEFAULT.directBuffer(input.length / 4 + SYNC.length);
+        int length;
+        do {
+            length = deflater.deflate(deflating.chunk, 0, deflating.chunk.length, Deflater.SYNC_FLUSH);
+            deflated.writeBytes(deflating.chunk, 0, length);
+        } while (length == deflating.chunk.length);
+        deflater.reset();
+        if (metrics != null) {
+            metrics.timer("parse.livequery.deflate").update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            metrics.counter("parse.livequery.deflate.inBytes").inc(input.length);
+            metrics.counter("parse.livequery.deflate.outBytes").inc(deflated.readableBytes());
+        }
+        return deflated;
+    }
+
+    // Turns the STORED_HEADER bytes that precede the data of the buffer into the header of a stored block
+    static ByteBuf store(ByteBuf buffer) {
+        int length = buffer.readableBytes() - STORED_HEADER;
+        if (length > MAX_STORED) {
+            throw new IllegalArgumentException("Stored block of " + length + " bytes");
+        }
+        int start = buffer.readerIndex();
+        buffer.setByte(start, 0);
+        buffer.setShortLE(start + 1, length);
+        buffer.setShortLE(start + 3, ~length);
+        return buffer;
+    }
+
+    // Uncompressed bytes in stored blocks, e.g. what separates the messages of a batch
+    static ByteBuf stored(ByteBuf data) {
+        int length = data.readableBytes();
+        int blocks = Math.max(1, (length + MAX_STORED - 1) / MAX_STORED);
+        ByteBuf stored = Unpooled.buffer(length + blocks * STORED_HEADER + SYNC.length);
+        for (int offset = 0, block = 0; block < blocks; block++, offset += MAX_STORED) {
+            int blockLength = Math.min(MAX_STORED, length - offset);
+            stored.writeByte(0);
+            stored.writeShortLE(blockLength);
+            stored.writeShortLE(~blockLength);
+            stored.writeBytes(data, data.readerIndex() + offset, blockLength);
+        }
+        return stored;
+    }
+
+    // A complete message of uncompressed bytes, for the messages that aren't shared, the data is released
+    static ByteBuf message(ByteBuf data) {
+        ByteBuf message = stored(data).writeBytes(SYNC);
+        data.release();
+        return message;
+    }
+
+    // The content of the frame of a message, which is sent without the tail of its sync flush block
+    static ByteBuf finish(ByteBuf message) {
+        return message.writerIndex(message.writerIndex() - TAIL);
+    }
+
+    private static final class Deflating {
+        final int level;
+        final Deflater deflater;
+        final byte[] chunk = new byte[8192];
+
+        Deflating(int level) {
+            this.level = level;
+            deflater = new Deflater(level, true);
+        }
+    }
+}
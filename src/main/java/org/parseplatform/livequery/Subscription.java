@@ -3,18 +3,21 @@ package org.parseplatform.livequery;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Arrays;
 
 public class Subscription {
     private static final Logger LOGGER = LoggerFactory.getLogger(Subscription.class);
     private final Query query;
-    private final Map<Client, Set<Integer>> clientRequestIds = new HashMap<>();
+    // By projection, replaced as a whole when a client joins or leaves, so the lookups read it without locking
+    private volatile Subscribers[] subscribers = Subscribers.NONE;
+    // Set when the registry drops the subscription, a client that found it before then has to find it again
+    private boolean removed;
+    // The epoch of the last lookup that evaluated the subscription, one slot per MatchBuffer
+    final long[] stamps = new long[MatchBuffer.SLOTS];
 
     public Subscription(Query query) {
         this.query = query;
@@ -24,89 +27,129 @@ public class Subscription {
         return query.className;
     }
 
-    public void addClientSubscription(Client client, Integer requestId) {
-        Set<Integer> requestIds = clientRequestIds.computeIfAbsent(client, k -> new HashSet<>());
-        requestIds.add(requestId);
+    // False when the subscription was removed from the registry in the meantime
+    public synchronized boolean addClientSubscription(Client client, Integer requestId, Projection projection) {
+        if (removed) {
+            return false;
+        }
+        Subscribers[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].projection.equals(projection)) {
+                if (current[i].indexOf(client, requestId) < 0) {
+                    Subscribers[] next = current.clone();
+                    next[i] = current[i].with(client, requestId);
+                    subscribers = next;
+                }
+                return true;
+            }
+        }
+        Subscribers[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = new Subscribers(projection, new Client[]{client}, new int[]{requestId});
+        subscribers = next;
+        return true;
     }
 
-    public void removeClientSubscription(Client client, Integer requestId) {
-        Set<Integer> requestIds = clientRequestIds.get(client);
-        if (requestIds == null) {
-            return;
-        }
-        requestIds.remove(requestId);
-        if (requestIds.isEmpty()) {
-            clientRequestIds.remove(client);
+    public synchronized void removeClientSubscription(Client client, Integer requestId, Projection projection) {
+        Subscribers[] current = subscribers;
+        for (int i = 0; i < current.length; i++) {
+            int index;
+            if (current[i].projection.equals(projection) && (index = current[i].indexOf(client, requestId)) >= 0) {
+                Subscribers[] next;
+                if (current[i].clients.length == 1) {
+                    next = new Subscribers[current.length - 1];
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, next.length - i);
+                } else {
+                    next = current.clone();
+                    next[i] = current[i].without(index);
+                }
+                subscribers = next;
+                return;
+            }
         }
     }
 
-    public boolean hasSubscribingClient() {
-        return !clientRequestIds.isEmpty();
+    // Marks a subscription without clients as removed, so that no client can join it anymore, true the first time
+    synchronized boolean markRemovedIfEmpty() {
+        if (removed || subscribers.length > 0) {
+            return false;
+        }
+        removed = true;
+        return true;
     }
 
-    public boolean matches(ParseMessage message) {
-        return query.matches(message.currentParseObject) || query.matches(message.originalParseObject);
+    public boolean hasSubscribingClient() {
+        return subscribers.length > 0;
     }
 
-    public void afterSave(ParseMessage message, EventBus eventBus) {
-        boolean isCurrentMatched = query.matches(message.currentParseObject);
-        boolean isOriginalMatched = query.matches(message.originalParseObject);
+    // Evaluates the query once against each version of the object, null if neither matches.
+    // When none of the fields of the query changed, both versions match the same and one evaluation is enough.
+    Event afterSaveEvent(ParseMessage message) {
+        boolean isCurrentMatched = query.matches(message.current());
+        if (message.hasOriginal() && query.isUnchangedBy(message)) {
+            return isCurrentMatched ? Event.update : null;
+        }
+        boolean isOriginalMatched = query.matches(message.original());
 
-        Event event;
         if (isOriginalMatched && isCurrentMatched) {
-            event = Event.update;
+            return Event.update;
         } else if (isOriginalMatched) {
-            event = Event.leave;
+            return Event.leave;
         } else if (isCurrentMatched) {
-            if (message.originalParseObject == null) {
-                event = Event.create;
-            } else {
-                event = Event.enter;
-            }
-        } else {
-            LOGGER.error("afterSave: query doesn't match");
-            return;
+            return message.hasOriginal() ? Event.enter : Event.create;
         }
+        return null;
+    }
+
+    Event afterDeleteEvent(ParseMessage message) {
+        return query.matches(message.current()) ? Event.delete : null;
+    }
+
+    public void afterSave(ParseMessage message, Event event, EventBus eventBus) {
         LOGGER.debug("afterSave | ClassName: {} | ObjectId: {} | Event: {}", message.className, message.objectId, event);
-        clientRequestIds.forEach((client, value) -> {
-            for (Integer requestId : value) {
-                checkACL(eventBus, message, client, requestId).onComplete((ar) -> {
-                    if (ar.result()) {
-                        client.pushEvent(event, requestId, message.currentParseObject);
-                    } else {
-                        LOGGER.debug("not forwarding message to {}", client.getId());
-                    }
-                });
-            }
-        });
+        push(message, event, eventBus);
     }
 
     public void afterDelete(ParseMessage message, EventBus eventBus) {
         LOGGER.debug("afterDelete | ClassName: {} | ObjectId: {}", message.className, message.objectId);
+        push(message, Event.delete, eventBus);
+    }
 
-        if (!query.matches(message.currentParseObject)) {
-            LOGGER.error("not matching message");
-            return;
+    // The object is projected and serialized once per distinct projection, not once per client.
+    // Publicly readable objects are pushed right away, the others after an ACL check per recipient.
+    private void push(ParseMessage message, Event event, EventBus eventBus) {
+        boolean isPublic = message.isPubliclyReadable();
+        for (Subscribers group : subscribers) {
+            EventFrame frame = new EventFrame(event, message.objectId, group.projection.apply(message, event),
+                group.projection.isDelta(message, event));
+            Client[] clients = group.clients;
+            int[] requestIds = group.requestIds;
+            for (int i = 0; i < clients.length; i++) {
+                if (isPublic) {
+                    clients[i].pushFrame(frame, requestIds[i]);
+                } else {
+                    pushIfReadable(eventBus, message, frame, clients[i], requestIds[i]);
+                }
+            }
+            frame.release();
         }
-        clientRequestIds.forEach((client, value) -> {
-            for (Integer requestId : value) {
-                checkACL(eventBus, message, client, requestId).onComplete((ar) -> {
-                    if (ar.result()) {
-                        client.pushEvent(Event.delete, requestId, message.currentParseObject);
-                    } else {
-                        LOGGER.debug("not forwarding message to {}", client.getId());
-                    }
-                });
+    }
+
+    private void pushIfReadable(EventBus eventBus, ParseMessage message, EventFrame frame, Client client, int requestId) {
+        frame.retain();
+        checkACL(eventBus, message, client, requestId).onComplete((ar) -> {
+            if (ar.result()) {
+                client.pushFrame(frame, requestId);
+            } else {
+                LOGGER.debug("not forwarding message to {}", client.getId());
             }
+            frame.release();
         });
     }
 
+    // Whether the user of the session of the subscription can read an object that isn't publicly readable
     private Future<Boolean> checkACL(EventBus eventBus, ParseMessage message, Client client, Integer requestId) {
         final Promise<Boolean> promise = Promise.promise();
-        if (message.isPubliclyReadable()) {
-            promise.complete(true);
-            return promise.future();
-        }
         SubscriptionInfo info = client.getSubscriptionInfo(requestId);
         String token;
         if (info != null && (token = info.getSessionToken()) != null) {
@@ -144,4 +187,45 @@ public class Subscription {
     public Query getQuery() {
         return query;
     }
+
+    // The clients of one projection, as parallel arrays of (client, requestId), never modified
+    private static final class Subscribers {
+        static final Subscribers[] NONE = new Subscribers[0];
+        final Projection projection;
+        final Client[] clients;
+        final int[] requestIds;
+
+        private Subscribers(Projection projection, Client[] clients, int[] requestIds) {
+            this.projection = projection;
+            this.clients = clients;
+            this.requestIds = requestIds;
+        }
+
+        int indexOf(Client client, int requestId) {
+            for (int i = 0; i < clients.length; i++) {
+                if (clients[i] == client && requestIds[i] == requestId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        Subscribers with(Client client, int requestId) {
+            Client[] nextClients = Arrays.copyOf(clients, clients.length + 1);
+            int[] nextRequestIds = Arrays.copyOf(requestIds, requestIds.length + 1);
+            nextClients[clients.length] = client;
+            nextRequestIds[requestIds.length] = requestId;
+            return new Subscribers(projection, nextClients, nextRequestIds);
+        }
+
+        Subscribers without(int index) {
+            Client[] nextClients = new Client[clients.length - 1];
+            int[] nextRequestIds = new int[requestIds.length - 1];
+            System.arraycopy(clients, 0, nextClients, 0, index);
+            System.arraycopy(clients, index + 1, nextClients, index, nextClients.length - index);
+            System.arraycopy(requestIds, 0, nextRequestIds, 0, index);
+            System.arraycopy(requestIds, index + 1, nextRequestIds, index, nextRequestIds.length - index);
+            return new Subscribers(projection, nextClients, nextRequestIds);
+        }
+    }
 }
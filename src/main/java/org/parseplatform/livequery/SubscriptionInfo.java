@@ -1,21 +1,21 @@
 package org.parseplatform.livequery;
 
-import io.vertx.core.json.JsonArray;
-
 class SubscriptionInfo {
     private final Subscription subscription;
+    private final Projection projection;
     private String sessionToken;
 
-    public SubscriptionInfo(Subscription subscription) {
+    public SubscriptionInfo(Subscription subscription, Projection projection) {
         this.subscription = subscription;
+        this.projection = projection;
     }
 
     public Subscription getSubscription() {
         return subscription;
     }
 
-    public JsonArray getFields() {
-        return subscription.getQuery().fields;
+    public Projection getProjection() {
+        return projection;
     }
 
     public String getSessionToken() {
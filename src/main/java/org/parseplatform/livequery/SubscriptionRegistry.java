@@ -1,25 +1,46 @@
 package org.parseplatform.livequery;
 
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-
-import static org.parseplatform.livequery.ParseConstants.OBJECT_ID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collector;
 
 public class SubscriptionRegistry {
     private static final Logger LOGGER = LoggerFactory.getLogger(SubscriptionRegistry.class);
-    static final String TYPE = "__type";
-    static final String POINTER = "Pointer";
     private static SubscriptionRegistry sInstance;
     // className -> classSubscriptions
     private final Map<String, Map<Query, Subscription>> subscriptionsByClass = new ConcurrentHashMap<>();
+    // className -> subscriptions that can't be found through an index
+    private final Map<String, Set<Subscription>> unindexedByClass = new ConcurrentHashMap<>();
+    // className -> fields that the unindexed subscriptions read, the parallel scan decodes only those
+    private final Map<String, ReferencedFields> unindexedFieldsByClass = new ConcurrentHashMap<>();
     private final SimpleQueryRegistry simpleQueryRegistry = new SimpleQueryRegistry();
+    private final MultiKeyQueryRegistry multiKeyQueryRegistry = new MultiKeyQueryRegistry();
+    private final RangeQueryRegistry rangeQueryRegistry = new RangeQueryRegistry();
+    private final GeoQueryRegistry geoQueryRegistry = new GeoQueryRegistry();
+    private final TextQueryRegistry textQueryRegistry = new TextQueryRegistry();
+    private final RegexQueryRegistry regexQueryRegistry = new RegexQueryRegistry();
+    private final ValueCardinality cardinality = new ValueCardinality();
+    private volatile ParallelScan parallelScan;
 
     private SubscriptionRegistry() {
     }
@@ -41,97 +62,314 @@ public class SubscriptionRegistry {
         return count;
     }
 
-    public void removeIfEmpty(Subscription subscription) {
-        if (subscription == null || subscription.hasSubscribingClient()) {
+    // Whether any query of the class is subscribed, messages of other classes are dropped unparsed
+    public boolean hasSubscriptions(String className) {
+        Map<Query, Subscription> classSubscriptions = subscriptionsByClass.get(className);
+        return (classSubscriptions != null && !classSubscriptions.isEmpty()) || simpleQueryRegistry.hasSubscriptions(className);
+    }
+
+    // The event loops of the clients add and remove subscriptions concurrently, the lookups don't lock
+    public synchronized void removeIfEmpty(Subscription subscription) {
+        if (subscription == null || !subscription.markRemovedIfEmpty()) {
             return;
         }
         Query query = subscription.getQuery();
         if (query.isSimple()) {
-            simpleQueryRegistry.removeIfEmpty(subscription);
+            if (simpleQueryRegistry.removeIfEmpty(subscription)) {
+                cardinality.remove(query);
+                query.release();
+            }
+            return;
         }
         Map<Query, Subscription> subscriptionMap = subscriptionsByClass.get(subscription.className());
-        if (subscriptionMap != null) {
-            subscriptionMap.remove(query);
+        if (subscriptionMap == null || subscriptionMap.remove(query) == null) {
+            return;
+        }
+        cardinality.remove(query);
+        if (!multiKeyQueryRegistry.remove(subscription) && !geoQueryRegistry.remove(subscription) &&
+            !textQueryRegistry.remove(subscription) && !regexQueryRegistry.remove(subscription) &&
+            !rangeQueryRegistry.remove(subscription)) {
+            Set<Subscription> unindexed = unindexedByClass.get(subscription.className());
+            if (unindexed != null && unindexed.remove(subscription)) {
+                unindexedFieldsByClass.get(subscription.className()).remove(query.referencedFields());
+            }
         }
+        query.release();
     }
 
-    public Subscription findOrCreate(Query query) {
+    // The subscription may be removed before the caller adds its client, then it has to call again.
+    // Throws an IllegalArgumentException if the fields of the query can't be held, see FieldDictionary.
+    public synchronized Subscription findOrCreate(Query query) {
         if (query.isSimple()) {
-            return simpleQueryRegistry.findOrCreate(query);
+            return simpleQueryRegistry.findOrCreate(query, q -> {
+                Subscription subscription = newSubscription(q);
+                cardinality.add(subscription.getQuery());
+                return subscription;
+            });
         }
         Map<Query, Subscription> classSubscriptions = subscriptionsByClass.computeIfAbsent(query.className, s -> new ConcurrentHashMap<>());
-        return classSubscriptions.computeIfAbsent(query, Subscription::new);
+        return classSubscriptions.computeIfAbsent(query, this::create);
     }
 
-    // attributes -> map of [attrValue -> subscriberList]
-    public Set<Subscription> findSubscriptions(ParseMessage o) {
-        Set<Subscription> subscriptions = simpleQueryRegistry.findSubscriptions(o);
-        if (!subscriptions.isEmpty()) {
-            return subscriptions;
+    // The subscription holds the ids of the fields of its query until it is removed
+    private static Subscription newSubscription(Query query) {
+        while (!query.hold()) {
+            query = query.recompile();
+        }
+        return new Subscription(query);
+    }
+
+    private Subscription create(Query key) {
+        Subscription subscription = newSubscription(key);
+        Query query = subscription.getQuery();
+        cardinality.add(query);
+        List<Query.Entry> keys = query.getIndexKeys(cardinality.preference(query.className));
+        Matcher.Range range;
+        Matcher.Geo geo;
+        Matcher.Text text;
+        Matcher.Regex regex;
+        if (keys != null) {
+            multiKeyQueryRegistry.add(subscription, keys);
+        } else if ((geo = query.getGeo()) != null) {
+            geoQueryRegistry.add(subscription, geo);
+        } else if ((text = query.getText()) != null) {
+            textQueryRegistry.add(subscription, text);
+        } else if ((regex = query.getRegex()) != null) {
+            regexQueryRegistry.add(subscription, regex);
+        } else if ((range = query.getRange()) != null) {
+            rangeQueryRegistry.add(subscription, range);
+        } else {
+            unindexedByClass.computeIfAbsent(query.className, s -> ConcurrentHashMap.newKeySet()).add(subscription);
+            unindexedFieldsByClass.computeIfAbsent(query.className, s -> new ReferencedFields()).add(query.referencedFields());
+        }
+        return subscription;
+    }
+
+    /**
+     * Evaluates the unindexed subscriptions of a class on a dedicated fork-join pool, split between its threads,
+     * when there are at least threshold of them. Only the asynchronous lookups use it.
+     */
+    public synchronized void enableParallelScan(int threshold, int parallelism) {
+        if (parallelScan == null) {
+            LOGGER.info("Scanning more than {} unindexed subscriptions in {} threads", threshold, parallelism);
+            parallelScan = new ParallelScan(threshold, parallelism);
+        }
+    }
+
+    // Subscriptions affected by a saved object, with the event to push to each one
+    public Map<Subscription, Event> findAfterSave(ParseMessage o) {
+        MatchBuffer buffer = new MatchBuffer();
+        try {
+            findAfterSave(o, buffer);
+            return buffer.toMap();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // Subscriptions affected by a deleted object
+    public Map<Subscription, Event> findAfterDelete(ParseMessage o) {
+        MatchBuffer buffer = new MatchBuffer();
+        try {
+            findAfterDelete(o, buffer);
+            return buffer.toMap();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    // Like findAfterSave, with the results in a buffer that the caller reuses, so the lookup doesn't allocate
+    void findAfterSave(ParseMessage o, MatchBuffer out) {
+        out.begin(o, false);
+        scan(out, findIndexed(out));
+    }
+
+    void findAfterDelete(ParseMessage o, MatchBuffer out) {
+        out.begin(o, true);
+        scan(out, findIndexed(out));
+    }
+
+    // Like findAfterSave, but doesn't block the caller while a large scan runs in parallel.
+    // The future is completed on the caller's context, the buffer must not be reused until then.
+    Future<MatchBuffer> findAfterSaveAsync(ParseMessage o, MatchBuffer out) {
+        out.begin(o, false);
+        return findSubscriptionsAsync(out);
+    }
+
+    Future<MatchBuffer> findAfterDeleteAsync(ParseMessage o, MatchBuffer out) {
+        out.begin(o, true);
+        return findSubscriptionsAsync(out);
+    }
+
+    private Future<MatchBuffer> findSubscriptionsAsync(MatchBuffer lookup) {
+        Set<Subscription> unindexed = findIndexed(lookup);
+        ParallelScan parallelScan = this.parallelScan;
+        if (parallelScan == null || unindexed == null || unindexed.size() < parallelScan.threshold) {
+            scan(lookup, unindexed);
+            return lookup.completed();
+        }
+        return parallelScan.scan(lookup, unindexed, unindexedFieldsByClass.get(lookup.message().className).get());
+    }
+
+    // Looks up the indexes, returns the subscriptions that have to be scanned
+    private Set<Subscription> findIndexed(MatchBuffer lookup) {
+        simpleQueryRegistry.findSubscriptions(lookup);
+        multiKeyQueryRegistry.findSubscriptions(lookup);
+        rangeQueryRegistry.findSubscriptions(lookup);
+        geoQueryRegistry.findSubscriptions(lookup);
+        textQueryRegistry.findSubscriptions(lookup);
+        regexQueryRegistry.findSubscriptions(lookup);
+        Set<Subscription> unindexed = unindexedByClass.get(lookup.message().className);
+        if (unindexed == null) {
+            LOGGER.trace("no unindexed subscriptions for {}", lookup.message().className);
+        }
+        return unindexed;
+    }
+
+    // Fallback to slow iteration over all other subscriptions
+    private static void scan(MatchBuffer lookup, Set<Subscription> unindexed) {
+        if (unindexed != null) {
+            lookup.offerAll(unindexed);
         }
-        Map<Query, Subscription> classSubscriptions = subscriptionsByClass.get(o.className);
-        if (classSubscriptions == null) {
-            LOGGER.debug("no subscriptions for {}", o.className);
-            return Collections.emptySet();
+    }
+
+    // The union of the fields of some queries, with a count per field so that queries can be removed
+    private static final class ReferencedFields {
+        private int[] counts = new int[0];
+        private volatile BitSet fields = new BitSet();
+
+        synchronized void add(BitSet queryFields) {
+            if (queryFields.length() > counts.length) {
+                counts = Arrays.copyOf(counts, queryFields.length());
+            }
+            for (int field = queryFields.nextSetBit(0); field >= 0; field = queryFields.nextSetBit(field + 1)) {
+                counts[field]++;
+            }
+            update();
         }
 
-        // Fallback to slow iteration over all other subscriptions
-        for (Subscription subscription : classSubscriptions.values()) {
-            if (subscription.matches(o)) {
-                subscriptions.add(subscription);
+        synchronized void remove(BitSet queryFields) {
+            for (int field = queryFields.nextSetBit(0); field >= 0; field = queryFields.nextSetBit(field + 1)) {
+                counts[field]--;
             }
+            update();
         }
 
-        return subscriptions;
+        // A snapshot, never modified
+        BitSet get() {
+            return fields;
+        }
+
+        private void update() {
+            BitSet updated = new BitSet(counts.length);
+            for (int field = 0; field < counts.length; field++) {
+                if (counts[field] > 0) {
+                    updated.set(field);
+                }
+            }
+            fields = updated;
+        }
+    }
+
+    private static class ParallelScan {
+        final int threshold;
+        private final ForkJoinPool pool;
+
+        ParallelScan(int threshold, int parallelism) {
+            this.threshold = threshold;
+            pool = new ForkJoinPool(parallelism);
+        }
+
+        // The message is frozen so that the pool threads can share it, the set is split by its spliterator.
+        // The unindexed subscriptions aren't in any index, so none of them was offered to the lookup yet.
+        Future<MatchBuffer> scan(MatchBuffer lookup, Set<Subscription> unindexed, BitSet fields) {
+            Context context = Vertx.currentContext();
+            Promise<MatchBuffer> promise = Promise.promise();
+            lookup.message().freeze(fields);
+            pool.execute(() -> {
+                Map<Subscription, Event> found;
+                try {
+                    found = unindexed.parallelStream().collect(Collector.of(
+                        HashMap::new,
+                        (events, subscription) -> {
+                            Event event = lookup.evaluate(subscription);
+                            if (event != null) {
+                                events.put(subscription, event);
+                            }
+                        },
+                        (events, other) -> {
+                            events.putAll(other);
+                            return events;
+                        }));
+                } catch (Throwable e) {
+                    // Also an Error, e.g. the StackOverflowError of a regex: a pending lookup would stall its lane
+                    runOn(context, () -> promise.fail(e));
+                    return;
+                }
+                runOn(context, () -> {
+                    found.forEach(lookup::add);
+                    promise.complete(lookup);
+                });
+            });
+            return promise.future();
+        }
+
+        private static void runOn(Context context, Runnable action) {
+            if (context == null) {
+                action.run();
+            } else {
+                context.runOnContext(v -> action.run());
+            }
+        }
     }
 
     private static class SimpleQueryRegistry {
         // className -> field -> value -> subscription
-        private final Map<String, Map<String, Map<Object, Subscription>>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<String, Fields<Map<Object, Subscription>>> subscriptions = new ConcurrentHashMap<>();
 
-        Subscription findOrCreate(Query query) {
+        Subscription findOrCreate(Query query, Function<Query, Subscription> create) {
             Map<Object, Subscription> simpleForField = findSimpleForField(query, true);
-            return simpleForField.computeIfAbsent(query.getPredicate().getValue(), o -> new Subscription(query));
+            return simpleForField.computeIfAbsent(query.getPredicate().getValue(), o -> create.apply(query));
         }
 
-        void removeIfEmpty(Subscription subscription) {
+        boolean removeIfEmpty(Subscription subscription) {
             Query query = subscription.getQuery();
             Map<Object, Subscription> simpleForField = findSimpleForField(query, false);
             if (simpleForField == null) {
-                return;
+                return false;
             }
             Map.Entry<String, Object> predicate = query.getPredicate();
-            simpleForField.remove(predicate.getValue());
+            boolean removed = simpleForField.remove(predicate.getValue()) != null;
             if (simpleForField.isEmpty()) {
                 subscriptions.get(query.className).remove(predicate.getKey());
             }
+            return removed;
         }
 
-        Set<Subscription> findSubscriptions(ParseMessage o) {
-            Set<Subscription> subscriptions = new HashSet<>();
-            Map<String, Map<Object, Subscription>> subscriptionMap = this.subscriptions.get(o.className);
-            if (subscriptionMap != null) {
-                for (String key : subscriptionMap.keySet()) {
-                    Object objectValue = o.currentParseObject.getValue(key);
-                    if (objectValue instanceof JsonObject) {
-                        JsonObject jo = (JsonObject) objectValue;
-                        if (POINTER.equals(jo.getString(TYPE))) {
-                            objectValue = jo.getString(OBJECT_ID);
-                        }
-                    }
-                    Subscription subscription = subscriptionMap.get(key).get(objectValue);
-                    if (subscription != null) {
-                        subscriptions.add(subscription);
-                    }
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Map<Object, Subscription>> subscriptionMap = this.subscriptions.get(lookup.message().className);
+            if (subscriptionMap == null) {
+                return;
+            }
+            for (Field<Map<Object, Subscription>> field : subscriptionMap.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
                 }
             }
-            return subscriptions;
+        }
+
+        private static void offer(MatchBuffer lookup, Map<Object, Subscription> forField, Object value) {
+            Subscription subscription = value == null ? null : forField.get(value);
+            if (subscription != null) {
+                lookup.offer(subscription);
+            }
         }
 
         // Finds all subscriptions that listen for changes for one field (specified in the query)
         private Map<Object, Subscription> findSimpleForField(Query query, boolean create) {
             Map.Entry<String, Object> predicate = query.getPredicate();
-            Map<String, Map<Object, Subscription>> classSubscriptions = subscriptions.computeIfAbsent(query.className, s -> new ConcurrentHashMap<>());
+            Fields<Map<Object, Subscription>> classSubscriptions = subscriptions.computeIfAbsent(query.className, Fields::new);
             if (create) {
                 return classSubscriptions.computeIfAbsent(predicate.getKey(), s -> new ConcurrentHashMap<>());
             } else {
@@ -139,9 +377,14 @@ public class SubscriptionRegistry {
             }
         }
 
+        boolean hasSubscriptions(String className) {
+            Fields<Map<Object, Subscription>> classSubscriptions = subscriptions.get(className);
+            return classSubscriptions != null && !classSubscriptions.isEmpty();
+        }
+
         int count() {
             int count = 0;
-            for (Map<String, Map<Object, Subscription>> fieldsMap : subscriptions.values()) {
+            for (Fields<Map<Object, Subscription>> fieldsMap : subscriptions.values()) {
                 for (Map<Object, Subscription> fieldValuesMap : fieldsMap.values()) {
                     count += fieldValuesMap.size();
                 }
@@ -149,4 +392,728 @@ public class SubscriptionRegistry {
             return count;
         }
     }
+
+    // Queries that can be found by one or more (field, value) keys: compound AND queries filed under
+    // one of their equality predicates, $in and $or of equalities filed under every listed value.
+    // The keys only narrow down the candidates, each candidate is matched against the whole query.
+    private static class MultiKeyQueryRegistry {
+        // className -> field -> value -> subscriptions
+        private final Map<String, Fields<Map<Object, Candidates>>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Subscription, List<Query.Entry>> keysBySubscription = new ConcurrentHashMap<>();
+
+        void add(Subscription subscription, List<Query.Entry> keys) {
+            keysBySubscription.put(subscription, keys);
+            Fields<Map<Object, Candidates>> classSubscriptions =
+                subscriptions.computeIfAbsent(subscription.className(), Fields::new);
+            for (Query.Entry key : keys) {
+                classSubscriptions.computeIfAbsent(key.getKey(), s -> new ConcurrentHashMap<>()).
+                    computeIfAbsent(key.getValue(), s -> new Candidates()).
+                    add(subscription);
+            }
+        }
+
+        boolean remove(Subscription subscription) {
+            List<Query.Entry> keys = keysBySubscription.remove(subscription);
+            if (keys == null) {
+                return false;
+            }
+            Fields<Map<Object, Candidates>> classSubscriptions = subscriptions.get(subscription.className());
+            for (Query.Entry key : keys) {
+                Map<Object, Candidates> forField = classSubscriptions.get(key.getKey());
+                if (forField == null) {
+                    continue;
+                }
+                forField.computeIfPresent(key.getValue(), (value, set) -> {
+                    set.remove(subscription);
+                    return set.isEmpty() ? null : set;
+                });
+                if (forField.isEmpty()) {
+                    classSubscriptions.remove(key.getKey());
+                }
+            }
+            return true;
+        }
+
+        // Looks up both versions of the object, so that the subscriptions that the object leaves are found too.
+        // A subscription filed under several keys is only evaluated once.
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Map<Object, Candidates>> classSubscriptions = subscriptions.get(lookup.message().className);
+            if (classSubscriptions == null) {
+                return;
+            }
+            for (Field<Map<Object, Candidates>> field : classSubscriptions.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
+                }
+            }
+        }
+
+        private static void offer(MatchBuffer lookup, Map<Object, Candidates> forField, Object value) {
+            Candidates candidates = value == null ? null : forField.get(value);
+            if (candidates != null) {
+                lookup.offerAll(candidates.snapshot());
+            }
+        }
+    }
+
+    // Queries with a numeric or Date range condition, filed by that range in an interval tree per field.
+    // A value is only offered to the ranges that contain it, whether they are bounded from one side or both,
+    // the inclusiveness of the bounds is checked with the rest of the query.
+    private static class RangeQueryRegistry {
+        // className -> field -> intervals
+        private final Map<String, Fields<Intervals>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Subscription, Matcher.Range> ranges = new ConcurrentHashMap<>();
+
+        void add(Subscription subscription, Matcher.Range range) {
+            ranges.put(subscription, range);
+            subscriptions.computeIfAbsent(subscription.className(), Fields::new).
+                computeIfAbsent(range.key, s -> new Intervals()).
+                add(subscription, range);
+        }
+
+        boolean remove(Subscription subscription) {
+            Matcher.Range range = ranges.remove(subscription);
+            if (range == null) {
+                return false;
+            }
+            Fields<Intervals> classSubscriptions = subscriptions.get(subscription.className());
+            classSubscriptions.computeIfPresent(range.key, (key, intervals) -> {
+                intervals.remove(subscription);
+                return intervals.isEmpty() ? null : intervals;
+            });
+            return true;
+        }
+
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Intervals> classSubscriptions = subscriptions.get(lookup.message().className);
+            if (classSubscriptions == null) {
+                return;
+            }
+            for (Field<Intervals> field : classSubscriptions.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
+                }
+            }
+        }
+
+        private static void offer(MatchBuffer lookup, Intervals intervals, Object normalized) {
+            double value = Matcher.rangeValue(normalized);
+            if (!Double.isNaN(value)) {
+                intervals.tree().stab(lookup, value);
+            }
+        }
+
+        // The ranges of one field. Adding or removing a range drops the tree, the next lookup rebuilds it,
+        // so that subscribing many ranges at once doesn't rebuild it for each one.
+        private static class Intervals {
+            private final Map<Subscription, Matcher.Range> members = new HashMap<>();
+            // Null when it has to be rebuilt
+            private volatile IntervalTree tree = IntervalTree.EMPTY;
+
+            synchronized void add(Subscription subscription, Matcher.Range range) {
+                members.put(subscription, range);
+                tree = null;
+            }
+
+            synchronized void remove(Subscription subscription) {
+                members.remove(subscription);
+                tree = null;
+            }
+
+            synchronized boolean isEmpty() {
+                return members.isEmpty();
+            }
+
+            IntervalTree tree() {
+                IntervalTree current = tree;
+                if (current != null) {
+                    return current;
+                }
+                synchronized (this) {
+                    if (tree == null) {
+                        IntervalTree built = IntervalTree.build(new ArrayList<>(members.entrySet()));
+                        tree = built == null ? IntervalTree.EMPTY : built;
+                    }
+                    return tree;
+                }
+            }
+        }
+    }
+
+    // A centered interval tree, immutable so that lookups neither lock nor allocate. Each node holds the ranges
+    // that contain its center, the ranges entirely below or above it are in the left or right subtree.
+    // A lookup visits one node per level, and in each node only reads the ranges that contain the value.
+    private static final class IntervalTree {
+        static final IntervalTree EMPTY = new IntervalTree(0, new ArrayList<>(), null, null);
+        private final double center;
+        // The ranges that contain the center, by ascending lower bound and by descending upper bound
+        private final Subscription[] byLower;
+        private final double[] lowers;
+        private final Subscription[] byUpper;
+        private final double[] uppers;
+        // Null when empty
+        private final IntervalTree left;
+        private final IntervalTree right;
+
+        private IntervalTree(double center, List<Map.Entry<Subscription, Matcher.Range>> containing,
+                             IntervalTree left, IntervalTree right) {
+            this.center = center;
+            this.left = left;
+            this.right = right;
+            int size = containing.size();
+            byLower = new Subscription[size];
+            lowers = new double[size];
+            byUpper = new Subscription[size];
+            uppers = new double[size];
+            containing.sort(Comparator.comparingDouble(entry -> entry.getValue().lower));
+            for (int i = 0; i < size; i++) {
+                byLower[i] = containing.get(i).getKey();
+                lowers[i] = containing.get(i).getValue().lower;
+            }
+            containing.sort(Comparator.comparingDouble(entry -> -entry.getValue().upper));
+            for (int i = 0; i < size; i++) {
+                byUpper[i] = containing.get(i).getKey();
+                uppers[i] = containing.get(i).getValue().upper;
+            }
+        }
+
+        // The center is the median of the finite bounds, it is a bound of some range so each node holds one.
+        // Null when there are no ranges.
+        static IntervalTree build(List<Map.Entry<Subscription, Matcher.Range>> entries) {
+            if (entries.isEmpty()) {
+                return null;
+            }
+            double[] bounds = new double[entries.size() * 2];
+            int count = 0;
+            for (Map.Entry<Subscription, Matcher.Range> entry : entries) {
+                Matcher.Range range = entry.getValue();
+                if (range.lower != Double.NEGATIVE_INFINITY) {
+                    bounds[count++] = range.lower;
+                }
+                if (range.upper != Double.POSITIVE_INFINITY) {
+                    bounds[count++] = range.upper;
+                }
+            }
+            Arrays.sort(bounds, 0, count);
+            double center = count == 0 ? 0 : bounds[count / 2];
+            List<Map.Entry<Subscription, Matcher.Range>> below = new ArrayList<>();
+            List<Map.Entry<Subscription, Matcher.Range>> above = new ArrayList<>();
+            List<Map.Entry<Subscription, Matcher.Range>> containing = new ArrayList<>();
+            for (Map.Entry<Subscription, Matcher.Range> entry : entries) {
+                Matcher.Range range = entry.getValue();
+                if (range.upper < center) {
+                    below.add(entry);
+                } else if (range.lower > center) {
+                    above.add(entry);
+                } else {
+                    containing.add(entry);
+                }
+            }
+            return new IntervalTree(center, containing, build(below), build(above));
+        }
+
+        // Offers the ranges that contain the value, counting their bounds as inclusive
+        void stab(MatchBuffer lookup, double value) {
+            for (IntervalTree node = this; node != null; ) {
+                if (value < node.center) {
+                    for (int i = 0; i < node.lowers.length && node.lowers[i] <= value; i++) {
+                        lookup.offer(node.byLower[i]);
+                    }
+                    node = node.left;
+                } else if (value > node.center) {
+                    for (int i = 0; i < node.uppers.length && node.uppers[i] >= value; i++) {
+                        lookup.offer(node.byUpper[i]);
+                    }
+                    node = node.right;
+                } else {
+                    lookup.offerAll(node.byLower);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Queries with a geo condition, filed in the cells of a hierarchical grid that cover the bounding box of their region.
+    // Level n divides the world into 2^n x 2^n cells, a region is filed at the finest level where it spans at most 2x2 cells,
+    // so a point only has to be looked up in one cell per level.
+    private static class GeoQueryRegistry {
+        // Cells of the finest level are about 38m x 19m at the equator
+        private static final int LEVELS = 21;
+        // className -> field -> grid
+        private final Map<String, Fields<Grid>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Subscription, Matcher.Geo> regions = new ConcurrentHashMap<>();
+
+        void add(Subscription subscription, Matcher.Geo region) {
+            regions.put(subscription, region);
+            subscriptions.computeIfAbsent(subscription.className(), Fields::new).
+                computeIfAbsent(region.key, s -> new Grid()).
+                add(subscription, region);
+        }
+
+        boolean remove(Subscription subscription) {
+            Matcher.Geo region = regions.remove(subscription);
+            if (region == null) {
+                return false;
+            }
+            Fields<Grid> classSubscriptions = subscriptions.get(subscription.className());
+            classSubscriptions.computeIfPresent(region.key, (key, grid) -> {
+                grid.remove(subscription, region);
+                return grid.isEmpty() ? null : grid;
+            });
+            return true;
+        }
+
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Grid> classSubscriptions = subscriptions.get(lookup.message().className);
+            if (classSubscriptions == null) {
+                return;
+            }
+            for (Field<Grid> field : classSubscriptions.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
+                }
+            }
+        }
+
+        private static void offer(MatchBuffer lookup, Grid grid, Object normalized) {
+            if (!(normalized instanceof GeoPoint)) {
+                return;
+            }
+            GeoPoint point = (GeoPoint) normalized;
+            for (int level = 0; level < LEVELS; level++) {
+                Map<Long, Candidates> cells = grid.levels[level];
+                Candidates candidates = cells.isEmpty() ? null :
+                    cells.get(cell(x(level, point.longitude), y(level, point.latitude)));
+                if (candidates != null) {
+                    lookup.offerAll(candidates.snapshot());
+                }
+            }
+        }
+
+        private static int level(Matcher.Geo region) {
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if (x(level, region.maxLongitude) - x(level, region.minLongitude) <= 1 &&
+                    y(level, region.maxLatitude) - y(level, region.minLatitude) <= 1) {
+                    return level;
+                }
+            }
+            return 0;
+        }
+
+        private static int x(int level, double longitude) {
+            int cells = 1 << level;
+            return Math.min(cells - 1, Math.max(0, (int) Math.floor((longitude + 180) / 360 * cells)));
+        }
+
+        private static int y(int level, double latitude) {
+            int cells = 1 << level;
+            return Math.min(cells - 1, Math.max(0, (int) Math.floor((latitude + 90) / 180 * cells)));
+        }
+
+        private static long cell(int x, int y) {
+            return ((long) x << 32) | y;
+        }
+
+        private static class Grid {
+            // level -> cell -> subscriptions
+            @SuppressWarnings("unchecked")
+            final Map<Long, Candidates>[] levels = new Map[LEVELS];
+
+            Grid() {
+                for (int level = 0; level < LEVELS; level++) {
+                    levels[level] = new ConcurrentHashMap<>();
+                }
+            }
+
+            void add(Subscription subscription, Matcher.Geo region) {
+                int level = level(region);
+                for (int x = x(level, region.minLongitude); x <= x(level, region.maxLongitude); x++) {
+                    for (int y = y(level, region.minLatitude); y <= y(level, region.maxLatitude); y++) {
+                        levels[level].computeIfAbsent(cell(x, y), s -> new Candidates()).add(subscription);
+                    }
+                }
+            }
+
+            void remove(Subscription subscription, Matcher.Geo region) {
+                int level = level(region);
+                for (int x = x(level, region.minLongitude); x <= x(level, region.maxLongitude); x++) {
+                    for (int y = y(level, region.minLatitude); y <= y(level, region.maxLatitude); y++) {
+                        levels[level].computeIfPresent(cell(x, y), (cell, set) -> {
+                            set.remove(subscription);
+                            return set.isEmpty() ? null : set;
+                        });
+                    }
+                }
+            }
+
+            boolean isEmpty() {
+                for (Map<Long, Candidates> cells : levels) {
+                    if (!cells.isEmpty()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+
+    // Queries with a $text condition, in an inverted index from the tokens that a match must have one of
+    // to the subscriptions. The text of a message is tokenized once per field.
+    private static class TextQueryRegistry {
+        // className -> field -> token -> subscriptions
+        private final Map<String, Fields<Map<String, Candidates>>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Subscription, Matcher.Text> texts = new ConcurrentHashMap<>();
+
+        void add(Subscription subscription, Matcher.Text text) {
+            texts.put(subscription, text);
+            Map<String, Candidates> forField = subscriptions.computeIfAbsent(subscription.className(), Fields::new).
+                computeIfAbsent(text.key, s -> new ConcurrentHashMap<>());
+            for (String token : text.tokens) {
+                forField.computeIfAbsent(token, s -> new Candidates()).add(subscription);
+            }
+        }
+
+        boolean remove(Subscription subscription) {
+            Matcher.Text text = texts.remove(subscription);
+            if (text == null) {
+                return false;
+            }
+            Fields<Map<String, Candidates>> classSubscriptions = subscriptions.get(subscription.className());
+            classSubscriptions.computeIfPresent(text.key, (key, forField) -> {
+                for (String token : text.tokens) {
+                    forField.computeIfPresent(token, (t, set) -> {
+                        set.remove(subscription);
+                        return set.isEmpty() ? null : set;
+                    });
+                }
+                return forField.isEmpty() ? null : forField;
+            });
+            return true;
+        }
+
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Map<String, Candidates>> classSubscriptions = subscriptions.get(lookup.message().className);
+            if (classSubscriptions == null) {
+                return;
+            }
+            for (Field<Map<String, Candidates>> field : classSubscriptions.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
+                }
+            }
+        }
+
+        private static void offer(MatchBuffer lookup, Map<String, Candidates> forField, Object value) {
+            if (!(value instanceof String)) {
+                return;
+            }
+            for (String token : TextSearch.tokenize((String) value, false, false)) {
+                Candidates candidates = forField.get(token);
+                if (candidates != null) {
+                    lookup.offerAll(candidates.snapshot());
+                }
+            }
+        }
+    }
+
+    // Queries with a regex that has a required literal, filed by that literal. The literals of a field are searched
+    // for in one pass with an Aho-Corasick automaton, only the regexes whose literal occurs are run.
+    private static class RegexQueryRegistry {
+        // className -> field -> literals
+        private final Map<String, Fields<Literals>> subscriptions = new ConcurrentHashMap<>();
+        private final Map<Subscription, Matcher.Regex> regexes = new ConcurrentHashMap<>();
+
+        void add(Subscription subscription, Matcher.Regex regex) {
+            regexes.put(subscription, regex);
+            subscriptions.computeIfAbsent(subscription.className(), Fields::new).
+                computeIfAbsent(regex.key, s -> new Literals()).
+                add(subscription, regex);
+        }
+
+        boolean remove(Subscription subscription) {
+            Matcher.Regex regex = regexes.remove(subscription);
+            if (regex == null) {
+                return false;
+            }
+            Fields<Literals> classSubscriptions = subscriptions.get(subscription.className());
+            classSubscriptions.computeIfPresent(regex.key, (key, literals) -> {
+                literals.remove(subscription, regex);
+                return literals.isEmpty() ? null : literals;
+            });
+            return true;
+        }
+
+        void findSubscriptions(MatchBuffer lookup) {
+            Fields<Literals> classSubscriptions = subscriptions.get(lookup.message().className);
+            if (classSubscriptions == null) {
+                return;
+            }
+            for (Field<Literals> field : classSubscriptions.snapshot()) {
+                offer(lookup, field.index, lookup.current().get(field.id));
+                if (lookup.original() != null) {
+                    offer(lookup, field.index, lookup.original().get(field.id));
+                }
+            }
+        }
+
+        private static void offer(MatchBuffer lookup, Literals literals, Object value) {
+            if (value instanceof String) {
+                literals.automata().search((String) value, lookup);
+            }
+        }
+
+        private static class Literals {
+            // literal -> subscriptions, case sensitive and case folded literals are searched separately
+            private final Map<String, Candidates> exact = new ConcurrentHashMap<>();
+            private final Map<String, Candidates> folded = new ConcurrentHashMap<>();
+            private final AtomicInteger version = new AtomicInteger();
+            private volatile Automata automata;
+
+            void add(Subscription subscription, Matcher.Regex regex) {
+                Map<String, Candidates> literals = regex.foldCase ? folded : exact;
+                literals.computeIfAbsent(regex.literal, s -> new Candidates()).add(subscription);
+                version.incrementAndGet();
+            }
+
+            void remove(Subscription subscription, Matcher.Regex regex) {
+                Map<String, Candidates> literals = regex.foldCase ? folded : exact;
+                literals.computeIfPresent(regex.literal, (literal, set) -> {
+                    set.remove(subscription);
+                    return set.isEmpty() ? null : set;
+                });
+                version.incrementAndGet();
+            }
+
+            boolean isEmpty() {
+                return exact.isEmpty() && folded.isEmpty();
+            }
+
+            // Rebuilt on the first lookup after the literals changed
+            Automata automata() {
+                Automata current = automata;
+                if (current != null && current.version == version.get()) {
+                    return current;
+                }
+                synchronized (this) {
+                    current = automata;
+                    int v = version.get();
+                    if (current == null || current.version != v) {
+                        current = new Automata(v, exact, folded);
+                        automata = current;
+                    }
+                    return current;
+                }
+            }
+        }
+
+        private static class Automata {
+            final int version;
+            private final AhoCorasick exact;
+            private final AhoCorasick folded;
+            private final List<Candidates> exactSubscriptions;
+            private final List<Candidates> foldedSubscriptions;
+
+            Automata(int version, Map<String, Candidates> exact, Map<String, Candidates> folded) {
+                this.version = version;
+                List<String> literals = new ArrayList<>();
+                exactSubscriptions = new ArrayList<>();
+                exact.forEach((literal, subscriptions) -> {
+                    literals.add(literal);
+                    exactSubscriptions.add(subscriptions);
+                });
+                this.exact = new AhoCorasick(literals, false);
+                literals.clear();
+                foldedSubscriptions = new ArrayList<>();
+                folded.forEach((literal, subscriptions) -> {
+                    literals.add(literal);
+                    foldedSubscriptions.add(subscriptions);
+                });
+                this.folded = new AhoCorasick(literals, true);
+            }
+
+            void search(String value, MatchBuffer lookup) {
+                if (!exactSubscriptions.isEmpty()) {
+                    exact.search(value, id -> lookup.offerAll(exactSubscriptions.get(id).snapshot()));
+                }
+                if (!foldedSubscriptions.isEmpty()) {
+                    folded.search(value, id -> lookup.offerAll(foldedSubscriptions.get(id).snapshot()));
+                }
+            }
+        }
+    }
+
+    // The indexes of one class by field. Lookups iterate over an array snapshot of the fields, which doesn't allocate,
+    // and read the fields of the object by their dictionary id.
+    private static final class Fields<T> {
+        private final String className;
+        private final Map<String, T> byName = new ConcurrentHashMap<>();
+        private volatile Field<T>[] snapshot = newArray(0);
+
+        Fields(String className) {
+            this.className = className;
+        }
+
+        T get(String field) {
+            return byName.get(field);
+        }
+
+        T computeIfAbsent(String field, Function<String, T> create) {
+            T index = byName.get(field);
+            if (index != null) {
+                return index;
+            }
+            synchronized (this) {
+                index = byName.computeIfAbsent(field, create);
+                updateSnapshot();
+                return index;
+            }
+        }
+
+        // The index is removed when update returns null
+        synchronized void computeIfPresent(String field, BiFunction<String, T, T> update) {
+            T before = byName.get(field);
+            if (byName.computeIfPresent(field, update) != before) {
+                updateSnapshot();
+            }
+        }
+
+        synchronized void remove(String field) {
+            if (byName.remove(field) != null) {
+                updateSnapshot();
+            }
+        }
+
+        boolean isEmpty() {
+            return byName.isEmpty();
+        }
+
+        Collection<T> values() {
+            return byName.values();
+        }
+
+        Field<T>[] snapshot() {
+            return snapshot;
+        }
+
+        private void updateSnapshot() {
+            List<Field<T>> fields = new ArrayList<>(byName.size());
+            // The class may have a new dictionary since the last update, if it had no queries meanwhile
+            FieldDictionary dictionary = FieldDictionary.forClass(className);
+            byName.forEach((name, index) -> fields.add(new Field<>(dictionary.id(name), index)));
+            snapshot = fields.toArray(newArray(0));
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Field<T>[] newArray(int length) {
+            return new Field[length];
+        }
+    }
+
+    // The subscriptions under one key of an index, a copy-on-write array so that lookups iterate without allocating.
+    // The keys of the indexes are selective, so the arrays stay small.
+    private static final class Candidates {
+        private static final Subscription[] EMPTY = new Subscription[0];
+        private volatile Subscription[] subscriptions = EMPTY;
+
+        synchronized void add(Subscription subscription) {
+            if (indexOf(subscription) < 0) {
+                Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+                updated[subscriptions.length] = subscription;
+                subscriptions = updated;
+            }
+        }
+
+        synchronized void remove(Subscription subscription) {
+            int i = indexOf(subscription);
+            if (i >= 0) {
+                Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length - 1);
+                System.arraycopy(subscriptions, i + 1, updated, i, updated.length - i);
+                subscriptions = updated;
+            }
+        }
+
+        boolean isEmpty() {
+            return subscriptions.length == 0;
+        }
+
+        Subscription[] snapshot() {
+            return subscriptions;
+        }
+
+        private int indexOf(Subscription subscription) {
+            for (int i = 0; i < subscriptions.length; i++) {
+                if (subscriptions[i] == subscription) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class Field<T> {
+        final int id;
+        final T index;
+
+        Field(int id, T index) {
+            this.id = id;
+            this.index = index;
+        }
+    }
+
+    // Number of subscribed queries per equality predicate, used to pick the most selective anchor
+    private static class ValueCardinality {
+        // className -> field -> value -> count
+        private final Map<String, Map<String, Map<Object, Integer>>> counts = new ConcurrentHashMap<>();
+
+        void add(Query query) {
+            Map<String, Map<Object, Integer>> classCounts = counts.computeIfAbsent(query.className, s -> new ConcurrentHashMap<>());
+            for (Query.Entry equality : query.getEqualities()) {
+                classCounts.computeIfAbsent(equality.getKey(), s -> new ConcurrentHashMap<>()).
+                    merge(equality.getValue(), 1, Integer::sum);
+            }
+        }
+
+        void remove(Query query) {
+            Map<String, Map<Object, Integer>> classCounts = counts.get(query.className);
+            if (classCounts == null) {
+                return;
+            }
+            for (Query.Entry equality : query.getEqualities()) {
+                Map<Object, Integer> forField = classCounts.get(equality.getKey());
+                if (forField != null) {
+                    forField.computeIfPresent(equality.getValue(), (value, count) -> count == 1 ? null : count - 1);
+                }
+            }
+        }
+
+        // Prefers fewer keys, then the fields with the most distinct values, then the values that the least queries share
+        Comparator<List<Query.Entry>> preference(String className) {
+            Map<String, Map<Object, Integer>> classCounts = counts.getOrDefault(className, Collections.emptyMap());
+            return Comparator.<List<Query.Entry>>comparingInt(List::size).
+                thenComparing(Comparator.comparingInt((List<Query.Entry> keys) -> minDistinct(classCounts, keys)).reversed()).
+                thenComparingInt(keys -> totalCount(classCounts, keys));
+        }
+
+        private static int minDistinct(Map<String, Map<Object, Integer>> classCounts, List<Query.Entry> keys) {
+            int min = Integer.MAX_VALUE;
+            for (Query.Entry key : keys) {
+                Map<Object, Integer> forField = classCounts.get(key.getKey());
+                min = Math.min(min, forField == null ? 0 : forField.size());
+            }
+            return min;
+        }
+
+        private static int totalCount(Map<String, Map<Object, Integer>> classCounts, List<Query.Entry> keys) {
+            int total = 0;
+            for (Query.Entry key : keys) {
+                Map<Object, Integer> forField = classCounts.get(key.getKey());
+                total += forField == null ? 0 : forField.getOrDefault(key.getValue(), 0);
+            }
+            return total;
+        }
+    }
 }
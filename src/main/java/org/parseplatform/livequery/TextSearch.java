@@ -0,0 +1,138 @@
+package org.parseplatform.livequery;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Tokenization for $text queries: words are runs of letters and digits, case and diacritics are
+ * optionally folded. There's no stemming and no stop words, whatever the $language.
+ */
+final class TextSearch {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private TextSearch() {
+    }
+
+    static List<String> tokenize(String text, boolean caseSensitive, boolean diacriticSensitive) {
+        if (!diacriticSensitive) {
+            text = stripDiacritics(text);
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                String token = text.substring(start, i);
+                tokens.add(caseSensitive ? token : RequiredLiteral.fold(token));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String stripDiacritics(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+            }
+        }
+        return text;
+    }
+
+    /**
+     * A parsed $search string, as in Mongo: "quoted phrases" are all required, -words and -"quoted phrases"
+     * are excluded, and any one of the other words is enough.
+     */
+    static final class Terms {
+        final List<String[]> phrases = new ArrayList<>();
+        final List<String> words = new ArrayList<>();
+        final List<String> excluded = new ArrayList<>();
+        final List<String[]> excludedPhrases = new ArrayList<>();
+
+        Terms(String search, boolean caseSensitive, boolean diacriticSensitive) {
+            int i = 0;
+            while (i < search.length()) {
+                char c = search.charAt(i);
+                int end;
+                boolean negated = c == '-' && i + 1 < search.length() && search.charAt(i + 1) == '"';
+                if (c == '"' || negated) {
+                    int start = negated ? i + 1 : i;
+                    end = search.indexOf('"', start + 1);
+                    end = end < 0 ? search.length() : end;
+                    List<String> phrase = tokenize(search.substring(start + 1, end), caseSensitive, diacriticSensitive);
+                    if (!phrase.isEmpty()) {
+                        (negated ? excludedPhrases : phrases).add(phrase.toArray(new String[0]));
+                    }
+                    i = end + 1;
+                } else if (Character.isWhitespace(c)) {
+                    i++;
+                } else {
+                    end = i;
+                    while (end < search.length() && !Character.isWhitespace(search.charAt(end)) && search.charAt(end) != '"') {
+                        end++;
+                    }
+                    if (c == '-') {
+                        excluded.addAll(tokenize(search.substring(i + 1, end), caseSensitive, diacriticSensitive));
+                    } else {
+                        words.addAll(tokenize(search.substring(i, end), caseSensitive, diacriticSensitive));
+                    }
+                    i = end;
+                }
+            }
+        }
+
+        boolean matches(List<String> tokens) {
+            for (String token : excluded) {
+                if (tokens.contains(token)) {
+                    return false;
+                }
+            }
+            for (String[] phrase : excludedPhrases) {
+                if (containsPhrase(tokens, phrase)) {
+                    return false;
+                }
+            }
+            for (String[] phrase : phrases) {
+                if (!containsPhrase(tokens, phrase)) {
+                    return false;
+                }
+            }
+            // Like in Mongo, the words are ignored when there are phrases
+            if (!phrases.isEmpty()) {
+                return true;
+            }
+            for (String word : words) {
+                if (tokens.contains(word)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Tokens that a matching text has at least one of, null if there are none
+        List<String> required() {
+            if (!phrases.isEmpty()) {
+                return Collections.singletonList(phrases.get(0)[0]);
+            }
+            return words.isEmpty() ? null : words;
+        }
+
+        private static boolean containsPhrase(List<String> tokens, String[] phrase) {
+            for (int i = 0; i + phrase.length <= tokens.size(); i++) {
+                int j = 0;
+                while (j < phrase.length && phrase[j].equals(tokens.get(i + j))) {
+                    j++;
+                }
+                if (j == phrase.length) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
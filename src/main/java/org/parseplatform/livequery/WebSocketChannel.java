@@ -0,0 +1,49 @@
+package org.parseplatform.livequery;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.http.impl.WebSocketInternal;
+import io.vertx.core.net.impl.ConnectionBase;
+
+import java.util.Map;
+
+/**
+ * The Netty channel of a server WebSocket, the only place that depends on Vert.x internals (WebSocketInternal,
+ * ConnectionBase). The public API of a WebSocket can neither write a frame with RSV1 set or a composite payload,
+ * nor write without flushing, nor tell whether an extension was negotiated.
+ * <p>
+ * Written against Vert.x 4.2, {@code ClientTest} and {@code SharedDeflateTest} exercise it on real sockets.
+ */
+final class WebSocketChannel {
+    private final ConnectionBase connection;
+
+    WebSocketChannel(ServerWebSocket ws) {
+        connection = (ConnectionBase) ((WebSocketInternal) ws).connection();
+    }
+
+    // Written without a flush, the frame is released once it is written
+    void write(WebSocketFrame frame) {
+        connection.writeToChannel(frame, false, connection.voidPromise);
+    }
+
+    void flush() {
+        connection.flush(connection.voidPromise);
+    }
+
+    // Whether Netty's permessage-deflate encoder is in the pipeline
+    boolean hasDeflateEncoder() {
+        for (Map.Entry<String, ChannelHandler> handler : pipeline()) {
+            if (handler.getValue() instanceof WebSocketExtensionEncoder) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ChannelPipeline pipeline() {
+        return connection.channelHandlerContext().pipeline();
+    }
+}
@@ -4,18 +4,30 @@ import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.ServerWebSocket;
 import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The WebSocket server, deployed as one instance per event loop. The instances share the port, and each one owns
+ * the clients of the sockets that it accepted: they are only touched on its event loop, the events that the
+ * lookups push to a client are handed over to it, see {@link Client}.
+ */
 public class WebsocketVerticle extends AbstractVerticle {
     private static final Logger LOGGER = LoggerFactory.getLogger(WebsocketVerticle.class);
+    // Of all the instances
+    private static final AtomicInteger CLIENTS = new AtomicInteger();
     private static final String SESSION_TOKEN = "sessionToken";
+    private static final String DELTA = "delta";
+    static final int DEFAULT_COMPRESSION_LEVEL = 6;
     private final SubscriptionRegistry subscriptionRegistry = SubscriptionRegistry.getInstance();
     private final Map<ServerWebSocket, Client> socketToClient = new HashMap<>();
     private MetricRegistry metricRegistry;
@@ -30,7 +42,16 @@ public class WebsocketVerticle extends AbstractVerticle {
     @Override
     public void start() {
         int port = config().getInteger(ConfigKey.PORT, 3000);
-        vertx.createHttpServer().webSocketHandler((ServerWebSocket ws) -> {
+        int compressionLevel = config().getInteger(ConfigKey.COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL);
+        HttpServerOptions options = new HttpServerOptions().
+            setPerFrameWebSocketCompressionSupported(false).
+            setPerMessageWebSocketCompressionSupported(compressionLevel > 0).
+            setWebSocketAllowServerNoContext(true).
+            setWebSocketSubProtocols(Arrays.asList(Codec.JSON.subProtocol(), Codec.CBOR.subProtocol()));
+        if (compressionLevel > 0) {
+            options.setWebSocketCompressionLevel(compressionLevel);
+        }
+        vertx.createHttpServer(options).webSocketHandler((ServerWebSocket ws) -> {
             LOGGER.debug("onConnect ws {}", ws.textHandlerID());
             if (ws.path().equals("/parse")) {
                 ws.handler(buffer -> onWsData(ws, buffer));
@@ -44,7 +65,7 @@ public class WebsocketVerticle extends AbstractVerticle {
         if (vertx.isMetricsEnabled()) {
             LOGGER.info("Metrics enabled");
             metricRegistry = MainVerticle.getMetricRegistry();
-            metricRegistry.register("parse.livequery.clients", (Gauge<Integer>) socketToClient::size);
+            metricRegistry.gauge("parse.livequery.clients", () -> (Gauge<Integer>) CLIENTS::get);
         }
     }
 
@@ -59,6 +80,7 @@ public class WebsocketVerticle extends AbstractVerticle {
             subscriptionRegistry.removeIfEmpty(s);
         }
         socketToClient.remove(ws);
+        CLIENTS.decrementAndGet();
         LOGGER.debug("Removed client {} ws: {}", client.getId(), ws.textHandlerID());
         LOGGER.debug("Current client number: {}", socketToClient.size());
         LOGGER.debug("Subscriptions count: {}", subscriptionRegistry.count());
@@ -68,7 +90,7 @@ public class WebsocketVerticle extends AbstractVerticle {
     private void onWsData(ServerWebSocket ws, Buffer buffer) {
         JsonObject o;
         try {
-            o = buffer.toJsonObject();
+            o = Codec.forSubProtocol(ws.subProtocol()).decode(buffer);
         } catch (DecodeException e) {
             LOGGER.error("onWsData", e);
             sendError(ws, 1, e.getMessage());
@@ -112,19 +134,33 @@ public class WebsocketVerticle extends AbstractVerticle {
     }
 
     // {"op":"subscribe","requestId":1,"query":{"className":"sharedSong","where":{"objectId":"CqjsImPeAd"}}}
+    // with "delta":true, update events carry only the keys that changed
     private void handleSubscribe(ServerWebSocket ws, JsonObject o) {
         Client client = getClient(ws);
         if (client == null) {
             return;
         }
-        Query query = new Query(o.getJsonObject(ParseConstants.QUERY));
-        Subscription subscription = subscriptionRegistry.findOrCreate(query);
-
-        SubscriptionInfo subscriptionInfo = new SubscriptionInfo(subscription);
-        subscriptionInfo.setSessionToken(o.getString(SESSION_TOKEN));
-
+        Query query;
+        try {
+            query = new Query(o.getJsonObject(ParseConstants.QUERY));
+        } catch (IllegalArgumentException e) {
+            sendError(ws, 1, e.getMessage());
+            return;
+        }
+        Projection projection = Projection.of(query.fields, o.getBoolean(DELTA, false));
         Integer requestId = o.getInteger(ParseConstants.REQUEST_ID);
-        client.subscribe(requestId, subscriptionInfo);
+        SubscriptionInfo subscriptionInfo;
+        try {
+            do {
+                // The last client of the subscription may leave on another event loop meanwhile
+                subscriptionInfo = new SubscriptionInfo(subscriptionRegistry.findOrCreate(query), projection);
+                subscriptionInfo.setSessionToken(o.getString(SESSION_TOKEN));
+            } while (!client.subscribe(requestId, subscriptionInfo));
+        } catch (IllegalArgumentException e) {
+            // The query had to be compiled again, and its fields no longer fit
+            sendError(ws, 1, e.getMessage());
+            return;
+        }
 
         LOGGER.debug("Subscribed client {} to subscription {}: {}", client.getId(), requestId, query);
         LOGGER.debug("Current client number: {}", socketToClient.size());
@@ -140,7 +176,7 @@ public class WebsocketVerticle extends AbstractVerticle {
         return client;
     }
 
-    // {"op":"connect","applicationId":"xyz"}
+    // {"op":"connect","applicationId":"xyz","batch":true}, batch is optional
     private void handleConnect(ServerWebSocket ws, JsonObject o) {
         String appId = o.getString(ConfigKey.APP_ID);
         if (!config().getString(ConfigKey.APP_ID).equals(appId)) {
@@ -148,8 +184,13 @@ public class WebsocketVerticle extends AbstractVerticle {
             return;
         }
         //TODO: check keyPairs
-        Client client = new Client(ws);
-        socketToClient.put(ws, client);
+        int deflateLevel = config().getBoolean(ConfigKey.SHARED_COMPRESSION, true) && SharedDeflate.negotiated(ws)
+            ? config().getInteger(ConfigKey.COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL) : 0;
+        Client client = new Client(ws, config().getInteger(ConfigKey.MAX_CLIENT_QUEUE_BYTES, 1 << 20),
+            o.getBoolean(Client.BATCH, false), deflateLevel);
+        if (socketToClient.put(ws, client) == null) {
+            CLIENTS.incrementAndGet();
+        }
         String id = client.getId();
         LOGGER.info("Created new client: {} ws: {}", id, ws.textHandlerID());
         client.pushConnect();
@@ -165,6 +206,18 @@ public class WebsocketVerticle extends AbstractVerticle {
 
     private void sendError(ServerWebSocket ws, int code, String error) {
         LOGGER.warn("{}; ws: {}", error, ws.textHandlerID());
-        ws.writeTextMessage(Client.generateError(code, error).toString());
+        Client client = socketToClient.get(ws);
+        if (client != null) {
+            // Its frames may be compressed by SharedDeflate
+            client.pushError(code, error);
+        } else {
+            Codec codec = Codec.forSubProtocol(ws.subProtocol());
+            Buffer message = Buffer.buffer(codec.encode(Client.generateError(code, error)));
+            if (codec.isBinary()) {
+                ws.writeBinaryMessage(message);
+            } else {
+                ws.writeTextMessage(message.toString());
+            }
+        }
     }
 }
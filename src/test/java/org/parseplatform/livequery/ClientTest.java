@@ -0,0 +1,325 @@
+package org.parseplatform.livequery;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientTest {
+    private static final int TIMEOUT = 5;
+    private static final String FILLER = "filler";
+    private static final int FILLER_BYTES = 16 * 1024;
+    private static final String FILLER_TEXT = new String(new char[FILLER_BYTES]).replace('\0', 'x');
+    private static Vertx vertx;
+    private final List<Connection> connections = new ArrayList<>();
+
+    @BeforeAll
+    static void init() {
+        // The clients record their metrics in the shared registry
+        System.setProperty("vertx.metrics.options.registryName", "ClientTest");
+        vertx = Vertx.vertx();
+    }
+
+    @AfterAll
+    static void shutdown() throws Exception {
+        await(vertx.close());
+    }
+
+    @AfterEach
+    void disconnect() throws Exception {
+        for (Connection connection : connections) {
+            await(connection.server.close());
+            await(connection.httpClient.close());
+        }
+    }
+
+    @Test
+    void sharedPayloadReleased() throws Exception {
+        Connection first = connect(1 << 20, false);
+        Connection second = connect(1 << 20, false);
+        EventFrame frame = new EventFrame(Event.update, "CqjsImPeAd", new JsonObject().put("title", "Fête"));
+        ByteBuf tail = frame.tail(Codec.JSON);
+        first.client.pushFrame(frame, 1);
+        second.client.pushFrame(frame, 2);
+        frame.release();
+
+        assertEquals(1, first.next().getInteger(ParseConstants.REQUEST_ID));
+        assertEquals("Fête", second.next().getJsonObject("object").getString("title"));
+        // Released by the encoder once both frames are written
+        assertReleased(tail);
+    }
+
+    @Test
+    void conflateOnlyWhileBackedUp() throws Exception {
+        Connection connection = connect(64 << 20, false);
+        onServer(connection, () -> {
+            push(connection, Event.update, "CqjsImPeAd", 1);
+            push(connection, Event.update, "CqjsImPeAd", 2);
+        });
+        assertEquals(1, connection.next().getJsonObject("object").getInteger("version"));
+        assertEquals(2, connection.next().getJsonObject("object").getInteger("version"));
+
+        backUp(connection);
+        onServer(connection, () -> {
+            push(connection, Event.update, "CqjsImPeAd", 3);
+            push(connection, Event.create, "Nj9CEXFvIm", 1);
+            push(connection, Event.update, "CqjsImPeAd", 4);
+            push(connection, Event.leave, "CqjsImPeAd", 5);
+            push(connection, Event.update, "CqjsImPeAd", 6);
+        });
+        connection.socket.resume();
+        // The update replaced the queued one in its place, the other events keep their order
+        assertEvent(Event.update, "CqjsImPeAd", 4, connection.nextAfterFillers());
+        assertEvent(Event.create, "Nj9CEXFvIm", 1, connection.next());
+        assertEvent(Event.leave, "CqjsImPeAd", 5, connection.next());
+        assertEvent(Event.update, "CqjsImPeAd", 6, connection.next());
+    }
+
+    @Test
+    void deltaUpdatesNotReplaced() throws Exception {
+        Connection connection = connect(64 << 20, false);
+        Projection delta = Projection.of(null, true);
+        ParseMessage first = new ParseMessage(new JsonObject("{\"currentParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\",\"title\":\"b\",\"plays\":1}," +
+            "\"originalParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\",\"title\":\"a\",\"plays\":1}}"));
+        ParseMessage second = new ParseMessage(new JsonObject("{\"currentParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\",\"title\":\"b\",\"plays\":2}," +
+            "\"originalParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\",\"title\":\"b\",\"plays\":1}}"));
+        backUp(connection);
+        onServer(connection, () -> {
+            for (ParseMessage message : new ParseMessage[]{first, second}) {
+                EventFrame frame = new EventFrame(Event.update, message.objectId, delta.apply(message, Event.update),
+                    delta.isDelta(message, Event.update));
+                connection.client.pushFrame(frame, 1);
+                frame.release();
+            }
+        });
+        connection.socket.resume();
+        // Each one carries the key of its own save
+        JsonObject object = connection.nextAfterFillers().getJsonObject("object");
+        assertEquals("b", object.getString("title"));
+        assertFalse(object.containsKey("plays"));
+        object = connection.next().getJsonObject("object");
+        assertEquals(2, object.getInteger("plays"));
+        assertFalse(object.containsKey("title"));
+    }
+
+    @Test
+    void overflow() throws Exception {
+        Connection connection = connect(4 * FILLER_BYTES, false);
+        backUp(connection);
+        onServer(connection, () -> {
+            for (int i = 0; i < 5; i++) {
+                pushFiller(connection, i);
+            }
+            push(connection, Event.update, "CqjsImPeAd", 1);
+        });
+        connection.socket.resume();
+        JsonObject error = connection.nextAfterFillers();
+        assertEquals(ParseConstants.ERROR, error.getString(ParseConstants.OP));
+        assertEquals(4, error.getInteger("code"));
+        assertTrue(error.getBoolean("reconnect"));
+        await(connection.closed.future());
+        assertTrue(connection.received.isEmpty());
+    }
+
+    @Test
+    void tickOrder() throws Exception {
+        Connection connection = connect(1 << 20, false);
+        onServer(connection, () -> {
+            connection.client.pushEvent(Event.subscribed, 1, null);
+            push(connection, Event.create, "CqjsImPeAd", 1);
+            connection.client.pushError(3, "Unknown operation");
+            push(connection, Event.update, "CqjsImPeAd", 2);
+        });
+        // Pushed from another thread, after the messages of the tick
+        push(connection, Event.delete, "CqjsImPeAd", 3);
+        assertEquals(Event.subscribed.name(), connection.next().getString(ParseConstants.OP));
+        assertEvent(Event.create, "CqjsImPeAd", 1, connection.next());
+        assertEquals(3, connection.next().getInteger("code"));
+        assertEvent(Event.update, "CqjsImPeAd", 2, connection.next());
+        assertEvent(Event.delete, "CqjsImPeAd", 3, connection.next());
+    }
+
+    @Test
+    void batch() throws Exception {
+        Connection connection = connect(1 << 20, true);
+        onServer(connection, () -> {
+            for (int i = 0; i < 70; i++) {
+                push(connection, Event.update, "CqjsImPeAd", i);
+            }
+        });
+        // The messages of a tick in arrays of at most 64 events
+        JsonArray first = connection.nextArray();
+        JsonArray second = connection.nextArray();
+        assertEquals(64, first.size());
+        assertEquals(6, second.size());
+        for (int i = 0; i < 70; i++) {
+            JsonObject message = (i < 64 ? first : second).getJsonObject(i % 64);
+            assertEvent(Event.update, "CqjsImPeAd", i, message);
+        }
+        // A single message isn't wrapped
+        push(connection, Event.delete, "CqjsImPeAd", 70);
+        assertEvent(Event.delete, "CqjsImPeAd", 70, connection.next());
+    }
+
+    @Test
+    void burstDoesNotOverflow() throws Exception {
+        Connection connection = connect(4 * FILLER_BYTES, false);
+        onServer(connection, () -> {
+            for (int i = 0; i < 8; i++) {
+                pushFiller(connection, i);
+            }
+        });
+        for (int i = 0; i < 8; i++) {
+            assertEquals(FILLER + i, connection.next().getJsonObject("object").getString("objectId"));
+        }
+        push(connection, Event.update, "CqjsImPeAd", 1);
+        assertEvent(Event.update, "CqjsImPeAd", 1, connection.next());
+    }
+
+    @Test
+    void closedBeforeFlush() throws Exception {
+        Connection connection = connect(1 << 20, false);
+        EventFrame frame = new EventFrame(Event.update, "CqjsImPeAd", new JsonObject().put("title", "Fête"));
+        ByteBuf tail = frame.tail(Codec.JSON);
+        onServer(connection, () -> {
+            connection.client.pushFrame(frame, 1);
+            connection.serverSocket.close();
+        });
+        frame.release();
+        await(connection.closed.future());
+        // The queued message is dropped when the tick ends
+        assertReleased(tail);
+    }
+
+    // An object event with the version of the object in its payload
+    private static void push(Connection connection, Event event, String objectId, int version) {
+        EventFrame frame = new EventFrame(event, objectId, new JsonObject().put("objectId", objectId).put("version", version));
+        connection.client.pushFrame(frame, 1);
+        frame.release();
+    }
+
+    private static void pushFiller(Connection connection, int i) {
+        EventFrame frame = new EventFrame(Event.create, FILLER + i, new JsonObject().put("objectId", FILLER + i).put("text", FILLER_TEXT));
+        connection.client.pushFrame(frame, 1);
+        frame.release();
+    }
+
+    private static void assertReleased(ByteBuf buffer) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (buffer.refCnt() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, buffer.refCnt());
+    }
+
+    private static void assertEvent(Event event, String objectId, int version, JsonObject message) {
+        assertEquals(event.name(), message.getString(ParseConstants.OP));
+        assertEquals(objectId, message.getJsonObject("object").getString("objectId"));
+        assertEquals(version, message.getJsonObject("object").getInteger("version"));
+    }
+
+    // Stops reading the socket and writes large events until the server side is backed up
+    private static void backUp(Connection connection) throws Exception {
+        connection.socket.pause();
+        CompletableFuture<Void> full = new CompletableFuture<>();
+        connection.context.runOnContext(v -> fill(connection, 0, full));
+        full.get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private static void fill(Connection connection, int fillers, CompletableFuture<Void> full) {
+        if (connection.serverSocket.writeQueueFull()) {
+            full.complete(null);
+        } else if (fillers == 10_000) {
+            full.completeExceptionally(new AssertionError("the socket isn't backed up"));
+        } else {
+            pushFiller(connection, fillers);
+            // After the end of the tick, when the filler was written
+            connection.context.runOnContext(v -> fill(connection, fillers + 1, full));
+        }
+    }
+
+    // Runs the task in one tick of the event loop of the server side
+    private static void onServer(Connection connection, Runnable task) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        connection.context.runOnContext(v -> {
+            task.run();
+            done.complete(null);
+        });
+        done.get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private Connection connect(int maxQueuedBytes, boolean batch) throws Exception {
+        Connection connection = new Connection();
+        CompletableFuture<Client> accepted = new CompletableFuture<>();
+        connection.server = vertx.createHttpServer().webSocketHandler(ws -> {
+            connection.serverSocket = ws;
+            connection.context = Vertx.currentContext();
+            accepted.complete(new Client(ws, maxQueuedBytes, batch, 0));
+        });
+        int port = await(connection.server.listen(0)).actualPort();
+        connection.httpClient = vertx.createHttpClient();
+        connection.socket = await(connection.httpClient.webSocket(port, "localhost", "/parse"));
+        connection.socket.textMessageHandler(text -> connection.received.add(Json.decodeValue(text)));
+        connection.socket.closeHandler(v -> connection.closed.complete());
+        connection.client = accepted.get(TIMEOUT, TimeUnit.SECONDS);
+        connections.add(connection);
+        return connection;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    // The server side of a socket, and the messages that the other side received
+    private static final class Connection {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        final Promise<Void> closed = Promise.promise();
+        HttpServer server;
+        HttpClient httpClient;
+        ServerWebSocket serverSocket;
+        Context context;
+        WebSocket socket;
+        Client client;
+
+        JsonObject next() throws InterruptedException {
+            Object message = received.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull(message, "no message");
+            return (JsonObject) message;
+        }
+
+        JsonArray nextArray() throws InterruptedException {
+            Object message = received.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull(message, "no message");
+            return (JsonArray) message;
+        }
+
+        JsonObject nextAfterFillers() throws InterruptedException {
+            JsonObject message = next();
+            while (message.containsKey("object") && message.getJsonObject("object").getString("objectId").startsWith(FILLER)) {
+                message = next();
+            }
+            return message;
+        }
+    }
+}
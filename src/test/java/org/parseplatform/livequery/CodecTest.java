@@ -0,0 +1,82 @@
+package org.parseplatform.livequery;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.jackson.JacksonCodec;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CodecTest {
+    private static final JsonObject OBJECT = new JsonObject("{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+        "\"title\":\"Fête\",\"plays\":12345678901,\"rating\":4.5,\"tags\":[\"a\",null,true]," +
+        "\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"}}");
+
+    @Test
+    void roundTrip() {
+        for (Codec codec : Codec.ALL) {
+            assertEquals(OBJECT, decode(codec, codec.encode(OBJECT)), codec.subProtocol());
+        }
+    }
+
+    @Test
+    void event() {
+        EventFrame update = new EventFrame(Event.update, "CqjsImPeAd", OBJECT);
+        EventFrame delete = new EventFrame(Event.delete, "CqjsImPeAd", null);
+        for (Codec codec : Codec.ALL) {
+            JsonObject expected = new JsonObject().put("op", "update").put("clientId", "c-1").put("requestId", 300)
+                .put("object", OBJECT);
+            assertEquals(expected, decode(codec, update.forRecipient(codec, "c-1", 300)), codec.subProtocol());
+            expected = new JsonObject().put("op", "delete").put("clientId", "c-1").put("requestId", -2);
+            assertEquals(expected, decode(codec, delete.forRecipient(codec, "c-1", -2)), codec.subProtocol());
+        }
+        update.release();
+        delete.release();
+        assertEquals(0, update.refCnt());
+    }
+
+    @Test
+    void batch() throws IOException {
+        for (Codec codec : Codec.ALL) {
+            assertEquals(new JsonArray().add(OBJECT).add(OBJECT), decodeBatch(codec), codec.subProtocol());
+        }
+    }
+
+    private static JsonArray decodeBatch(Codec codec) throws IOException {
+        ByteBuf batch = Unpooled.wrappedBuffer(codec.batchOpen().duplicate(), codec.encode(OBJECT),
+            codec.batchSeparator().duplicate(), codec.encode(OBJECT), codec.batchClose().duplicate());
+        byte[] bytes = ByteBufUtil.getBytes(batch);
+        batch.release();
+        if (!codec.isBinary()) {
+            return new JsonArray(Buffer.buffer(bytes));
+        }
+        try (JsonParser parser = new CBORFactory().createParser(bytes)) {
+            return (JsonArray) JacksonCodec.fromParser(parser, Object.class);
+        }
+    }
+
+    @Test
+    void forSubProtocol() {
+        for (Codec codec : Codec.ALL) {
+            assertSame(codec, Codec.forSubProtocol(codec.subProtocol()));
+            assertSame(codec, Codec.ALL[codec.index()]);
+        }
+        assertSame(Codec.JSON, Codec.forSubProtocol(null));
+    }
+
+    private static JsonObject decode(Codec codec, ByteBuf message) {
+        try {
+            return codec.decode(Buffer.buffer(message));
+        } finally {
+            message.release();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.parseplatform.livequery;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DispatchLanesTest {
+    @Test
+    void laneOf() {
+        DispatchLanes lanes = new DispatchLanes(4);
+        for (int i = 0; i < 100; i++) {
+            int lane = lanes.laneOf(message("objectId" + i, 1));
+            assertTrue(lane >= 0 && lane < 4);
+            assertEquals(lane, lanes.laneOf(message("objectId" + i, 2)));
+            assertEquals(lane, lanes.laneOf(ParseMessage.parse("{\"currentParseObject\":{\"className\":\"sharedLane\",\"objectId\":\"objectId" + i + "\"}}", className -> true)));
+        }
+    }
+
+    @Test
+    void joinRejectsExtraLane() {
+        DispatchLanes lanes = new DispatchLanes(2);
+        assertEquals(0, lanes.join((message, deleted, done) -> done.run()));
+        assertEquals(1, lanes.join((message, deleted, done) -> done.run()));
+        assertThrows(IllegalStateException.class, () -> lanes.join((message, deleted, done) -> done.run()));
+    }
+
+    @Test
+    void dispatchInOrder() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        DispatchLanes lanes = new DispatchLanes(2);
+        MetricRegistry metrics = new MetricRegistry();
+        lanes.registerMetrics(metrics);
+        int objects = 10;
+        int versions = 100;
+        CountDownLatch pushed = new CountDownLatch(objects * versions);
+        ConcurrentHashMap<String, List<Integer>> received = new ConcurrentHashMap<>();
+        for (int i = 0; i < lanes.size(); i++) {
+            Context context = vertx.getOrCreateContext();
+            CompletableFuture<Void> joined = new CompletableFuture<>();
+            context.runOnContext(v -> {
+                lanes.join((message, deleted, done) -> {
+                    assertSame(context, Vertx.currentContext());
+                    received.computeIfAbsent(message.objectId, objectId -> new ArrayList<>())
+                        .add(message.currentParseObject().getInteger("version"));
+                    // Like a lookup that completes later
+                    vertx.setTimer(1, t -> {
+                        done.run();
+                        pushed.countDown();
+                    });
+                });
+                joined.complete(null);
+            });
+            joined.get(5, TimeUnit.SECONDS);
+        }
+
+        for (int version = 0; version < versions; version++) {
+            for (int i = 0; i < objects; i++) {
+                lanes.dispatch(message("objectId" + i, version), false);
+            }
+        }
+        assertTrue(pushed.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < objects; i++) {
+            List<Integer> order = received.get("objectId" + i);
+            assertEquals(versions, order.size());
+            for (int version = 0; version < versions; version++) {
+                assertEquals(version, order.get(version));
+            }
+        }
+        assertEquals(0, ((Gauge<?>) metrics.getGauges().get("parse.livequery.lane.0.depth")).getValue());
+        assertEquals(0, ((Gauge<?>) metrics.getGauges().get("parse.livequery.lane.1.depth")).getValue());
+        vertx.close().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private static ParseMessage message(String objectId, int version) {
+        return new ParseMessage(new JsonObject().put("currentParseObject",
+            new JsonObject().put("className", "sharedLane").put("objectId", objectId).put("version", version)));
+    }
+}
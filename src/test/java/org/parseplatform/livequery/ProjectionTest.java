@@ -0,0 +1,51 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectionTest {
+    private static final String MESSAGE = "{\"currentParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+        "\"updatedAt\":\"2021-10-02T10:00:00.000Z\",\"title\":\"Fête\",\"plays\":11,\"tags\":[\"a\"],\"genre\":\"pop\"}," +
+        "\"originalParseObject\":{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+        "\"updatedAt\":\"2021-10-01T10:00:00.000Z\",\"title\":\"Fête\",\"plays\":10,\"tags\":[\"a\"],\"lyrics\":\"la\"}}";
+
+    @Test
+    void delta() {
+        for (ParseMessage message : messages()) {
+            JsonObject expected = new JsonObject("{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+                "\"updatedAt\":\"2021-10-02T10:00:00.000Z\",\"plays\":11,\"genre\":\"pop\",\"lyrics\":{\"__op\":\"Delete\"}}");
+            assertEquals(expected, Projection.of(null, true).apply(message, Event.update));
+
+            JsonArray fields = new JsonArray().add("title").add("plays");
+            expected = new JsonObject("{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+                "\"updatedAt\":\"2021-10-02T10:00:00.000Z\",\"plays\":11}");
+            assertEquals(expected, Projection.of(fields, true).apply(message, Event.update));
+        }
+    }
+
+    @Test
+    void deltaOnlyForUpdates() {
+        for (ParseMessage message : messages()) {
+            assertEquals(message.currentParseObject(), Projection.of(null, true).apply(message, Event.enter));
+            assertEquals(message.currentParseObject(), Projection.ALL.apply(message, Event.update));
+        }
+        ParseMessage created = new ParseMessage(new JsonObject(MESSAGE).put("originalParseObject", (Object) null));
+        assertEquals(created.currentParseObject(), Projection.of(null, true).apply(created, Event.update));
+    }
+
+    @Test
+    void equality() {
+        JsonArray fields = new JsonArray().add("title").add("plays");
+        assertEquals(Projection.of(fields, true), Projection.of(new JsonArray().add("plays").add("title"), true));
+        assertNotEquals(Projection.of(fields), Projection.of(fields, true));
+        assertNotEquals(Projection.ALL, Projection.of(null, true));
+        assertSame(Projection.ALL, Projection.of(null, false));
+    }
+
+    private static ParseMessage[] messages() {
+        return new ParseMessage[]{new ParseMessage(new JsonObject(MESSAGE)), ParseMessage.parse(MESSAGE, className -> true)};
+    }
+}
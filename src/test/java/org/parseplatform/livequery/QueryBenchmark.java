@@ -0,0 +1,127 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Matcher throughput for the QueryTest cases. The views of the objects are built in the setup, and they cache the
+ * decoded fields, so each benchmark measures the evaluation of one matcher; sharedView measures building a view.
+ * Run with:
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.parseplatform.livequery.QueryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    private Query queryById;
+    private Query queryByObject;
+    private Query queryWithOr;
+    private Query greaterThan;
+    private Query exists;
+    private Query notEquals;
+    private Query containedIn;
+    private Query containsAll;
+    private Query regex;
+    private JsonObject user;
+    private ParseObjectView songView;
+    private ParseObjectView userView;
+
+    private static Query buildQuery(String str) {
+        return new Query(new JsonObject(str));
+    }
+
+    @Setup
+    public void setup() {
+        queryById = buildQuery("{\"className\":\"Song\",\"where\":{\"objectId\":\"CqjsImPeAd\"}}");
+        queryByObject = buildQuery("{\"className\":\"Song\",\"where\":{\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"}}}");
+        queryWithOr = buildQuery("{\"className\":\"Song\",\"where\":{\"$or\":[{\"objectId\":\"foo\"},{\"objectId\":\"CqjsImPeAd\"}]}}");
+        greaterThan = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$gt\":18}}}");
+        exists = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":{\"$exists\":true}}}");
+        notEquals = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$ne\":18}}}");
+        containedIn = buildQuery("{\"className\":\"_User\",\"where\":{\"country\":{\"$in\":[\"UK\",\"US\",\"FR\",\"DE\"]}}}");
+        containsAll = buildQuery("{\"className\":\"_User\",\"where\":{\"languages\":{\"$all\":[\"English\",\"Spanish\"]}}}");
+        regex = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":{\"$regex\":\"\\\\Qoma\\\\E\"}}}");
+        JsonObject song = new JsonObject("{\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"},\"objectId\":\"CqjsImPeAd\",\"__type\":\"Object\",\"className\":\"Song\"}");
+        user = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\",\"__type\":\"Object\",\"className\":\"_User\",\"name\":\"Roman\",\"age\":19,\"country\":\"DE\",\"languages\":[\"Spanish\",\"English\"]}");
+        songView = new ParseObjectView(song);
+        userView = new ParseObjectView(user);
+        // Decodes the fields once, the benchmarks only evaluate
+        for (Query query : new Query[]{queryById, queryByObject, queryWithOr}) {
+            query.matches(songView);
+        }
+        for (Query query : new Query[]{greaterThan, exists, notEquals, containedIn, containsAll, regex}) {
+            query.matches(userView);
+        }
+    }
+
+    @Benchmark
+    public boolean byId() {
+        return queryById.matches(songView);
+    }
+
+    @Benchmark
+    public boolean byPointer() {
+        return queryByObject.matches(songView);
+    }
+
+    @Benchmark
+    public boolean or() {
+        return queryWithOr.matches(songView);
+    }
+
+    @Benchmark
+    public boolean greaterThan() {
+        return greaterThan.matches(userView);
+    }
+
+    @Benchmark
+    public boolean exists() {
+        return exists.matches(userView);
+    }
+
+    @Benchmark
+    public boolean notEquals() {
+        return notEquals.matches(userView);
+    }
+
+    @Benchmark
+    public boolean containedIn() {
+        return containedIn.matches(userView);
+    }
+
+    @Benchmark
+    public boolean containsAll() {
+        return containsAll.matches(userView);
+    }
+
+    @Benchmark
+    public boolean regex() {
+        return regex.matches(userView);
+    }
+
+    // One message evaluated against several queries decodes each field once
+    @Benchmark
+    public int sharedView() {
+        ParseObjectView view = new ParseObjectView(user);
+        int matches = 0;
+        for (Query query : new Query[]{greaterThan, exists, notEquals, containedIn, containsAll, regex}) {
+            if (query.matches(view)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(QueryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -4,7 +4,12 @@ import io.vertx.core.json.JsonObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -98,6 +103,21 @@ class QueryTest {
         assertTrue(q.matches(o2));
     }
 
+    @Test
+    void nullMatchesMissingField() {
+        JsonObject missing = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\"}");
+        JsonObject one = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\", \"name\":1}");
+        for (String where : new String[]{"null", "{\"$eq\":null}", "{\"$in\":[null]}", "{\"$in\":[null,1]}"}) {
+            Query q = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":" + where + "}}");
+            assertTrue(q.matches(missing), where);
+        }
+        Query ne = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":{\"$ne\":null}}}");
+        assertFalse(ne.matches(missing));
+        assertTrue(ne.matches(one));
+        Query in = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":{\"$in\":[null]}}}");
+        assertFalse(in.matches(one));
+    }
+
     @Test
     void greaterThan() {
         Query q = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$gt\":18}}}");
@@ -153,4 +173,185 @@ class QueryTest {
         assertTrue(q.matches(o1));
         assertFalse(q.matches(o2));
     }
+
+    @Test
+    void range() {
+        Query q = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$gte\":18,\"$lt\":21}}}");
+        JsonObject o1 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\", \"age\":18}");
+        JsonObject o2 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\", \"age\":21}");
+        JsonObject o3 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\", \"age\":\"20\"}");
+        assertTrue(q.matches(o1));
+        assertFalse(q.matches(o2));
+        assertFalse(q.matches(o3));
+    }
+
+    @Test
+    void compound() {
+        Query q = buildQuery("{\"className\":\"Song\",\"where\":{\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"},\"status\":\"active\"}}");
+        JsonObject o1 = new JsonObject("{\"user\":{\"__type\":\"Pointer\", \"className\":\"_User\", \"objectId\":\"Nj9CEXFvIm\"},\"status\":\"active\",\"objectId\":\"AAjsImPeAd\", \"__type\":\"Object\", \"className\":\"Song\"}");
+        JsonObject o2 = new JsonObject("{\"user\":{\"__type\":\"Pointer\", \"className\":\"_User\", \"objectId\":\"Nj9CEXFvIm\"},\"status\":\"deleted\",\"objectId\":\"AAjsImPeAd\", \"__type\":\"Object\", \"className\":\"Song\"}");
+        assertFalse(q.isSimple());
+        assertTrue(q.matches(o1));
+        assertFalse(q.matches(o2));
+
+        q = buildQuery("{\"className\":\"Song\",\"where\":{\"status\":\"active\",\"$or\":[{\"objectId\":\"AAjsImPeAd\"},{\"objectId\":\"foo\"}]}}");
+        assertTrue(q.matches(o1));
+        assertFalse(q.matches(o2));
+    }
+
+    @Test
+    void containsWithOptions() {
+        Query q = buildQuery("{\"className\":\"_User\",\"where\":{\"name\":{\"$regex\":\"^rom\",\"$options\":\"i\"}}}");
+        JsonObject o1 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\",\"name\":\"Roman\"}");
+        JsonObject o2 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"_User\"}");
+        assertTrue(q.matches(o1));
+        assertFalse(q.matches(o2));
+    }
+
+    @Test
+    void dateRange() {
+        Query q = buildQuery("{\"className\":\"Game\",\"where\":{\"endsAt\":{\"$gt\":{\"__type\":\"Date\",\"iso\":\"2021-10-01T12:00:00.000Z\"}}}}");
+        JsonObject o1 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"Game\", \"endsAt\":{\"__type\":\"Date\",\"iso\":\"2021-10-01T12:00:00.001Z\"}}");
+        JsonObject o2 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"Game\", \"endsAt\":{\"__type\":\"Date\",\"iso\":\"2021-10-01T12:00:00.000Z\"}}");
+        JsonObject o3 = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"__type\":\"Object\", \"className\":\"Game\", \"endsAt\":1633089600001}");
+        assertTrue(q.matches(o1));
+        assertFalse(q.matches(o2));
+        assertFalse(q.matches(o3));
+    }
+
+    @Test
+    void canonical() {
+        Query q1 = buildQuery("{\"className\":\"Song\",\"where\":{\"status\":\"active\",\"objectId\":{\"$in\":[\"b\",\"a\",\"b\"]}}}");
+        Query q2 = buildQuery("{\"className\":\"Song\",\"where\":{\"$or\":[{\"objectId\":{\"$in\":[\"a\",\"b\"]}}],\"status\":{\"$eq\":\"active\"}}}");
+        assertEquals(q1, q2);
+        assertEquals(q1.getFingerprint(), q2.getFingerprint());
+        assertEquals(q1.hashCode(), q2.hashCode());
+
+        Query q3 = buildQuery("{\"className\":\"Song\",\"where\":{\"objectId\":{\"$in\":[\"CqjsImPeAd\"]}}}");
+        assertEquals(queryById, q3);
+        assertTrue(q3.isSimple());
+
+        Query q4 = buildQuery("{\"className\":\"Song\",\"where\":{\"user\":{\"objectId\":\"Nj9CEXFvIm\",\"className\":\"_User\",\"__type\":\"Pointer\"}}}");
+        assertEquals(queryByObject, q4);
+        assertNotEquals(queryById, queryWithOr);
+        assertNotEquals(queryById, buildQuery("{\"className\":\"Album\",\"where\":{\"objectId\":\"CqjsImPeAd\"}}"));
+    }
+
+    @Test
+    void normalizedView() {
+        Query q1 = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":19.0}}");
+        Query q2 = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$in\":[18,19]},\"country\":{\"$exists\":false}}}");
+        Query q3 = buildQuery("{\"className\":\"_User\",\"where\":{\"age\":{\"$gt\":{\"__type\":\"Date\",\"iso\":\"2021-10-01T12:00:00.000Z\"}}}}");
+        ParseObjectView view = new ParseObjectView(new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"className\":\"_User\",\"age\":19}"));
+        assertEquals(19.0, view.get("age"));
+        assertSame(ParseObjectView.ABSENT, view.get("country"));
+        assertTrue(q1.matches(view));
+        assertTrue(q2.matches(view));
+        assertFalse(q3.matches(view));
+    }
+
+    @Test
+    void geo() {
+        // Around Tel Aviv, the driver is about 3km from the center
+        Query near = buildQuery("{\"className\":\"Driver\",\"where\":{\"location\":{\"$nearSphere\":{\"__type\":\"GeoPoint\",\"latitude\":32.0853,\"longitude\":34.7818},\"$maxDistanceInKilometers\":5}}}");
+        Query far = buildQuery("{\"className\":\"Driver\",\"where\":{\"location\":{\"$nearSphere\":{\"__type\":\"GeoPoint\",\"latitude\":32.0853,\"longitude\":34.7818},\"$maxDistanceInKilometers\":2}}}");
+        Query box = buildQuery("{\"className\":\"Driver\",\"where\":{\"location\":{\"$within\":{\"$box\":[{\"__type\":\"GeoPoint\",\"latitude\":32,\"longitude\":34.7},{\"__type\":\"GeoPoint\",\"latitude\":32.2,\"longitude\":34.9}]}}}}");
+        Query polygon = buildQuery("{\"className\":\"Driver\",\"where\":{\"location\":{\"$geoWithin\":{\"$polygon\":[[34.7,32],[34.9,32],[34.8,32.2]]}}}}");
+        JsonObject o = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"className\":\"Driver\",\"location\":{\"__type\":\"GeoPoint\",\"latitude\":32.11,\"longitude\":34.795}}");
+        assertTrue(near.matches(o));
+        assertFalse(far.matches(o));
+        assertTrue(box.matches(o));
+        assertTrue(polygon.matches(o));
+        assertNotNull(box.getGeo());
+
+        o.put("location", new JsonObject("{\"__type\":\"GeoPoint\",\"latitude\":32.19,\"longitude\":34.71}"));
+        assertTrue(box.matches(o));
+        assertFalse(polygon.matches(o));
+    }
+
+    @Test
+    void requiredLiteral() {
+        assertEquals("@roman", RequiredLiteral.of(Pattern.compile("(^|\\s)@roman\\b")));
+        assertEquals("oma", RequiredLiteral.of(Pattern.compile("\\Qoma\\E")));
+        assertEquals("world", RequiredLiteral.of(Pattern.compile("hello?[a-z]+WORLD", Pattern.CASE_INSENSITIVE)));
+        assertEquals("abc", RequiredLiteral.of(Pattern.compile("[[ab]xyz]abc\\d{2}")));
+        assertEquals("rom", RequiredLiteral.of(Pattern.compile("ROM", Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)));
+        assertNull(RequiredLiteral.of(Pattern.compile("foo|bar")));
+        assertNull(RequiredLiteral.of(Pattern.compile("(?i)foo")));
+        assertNull(RequiredLiteral.of(Pattern.compile("\\x41")));
+        assertNull(RequiredLiteral.of(Pattern.compile("a*.b?")));
+    }
+
+    @Test
+    void text() {
+        Query any = buildQuery("{\"className\":\"Post\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"coffee cafe -tea\"}}}}}");
+        Query phrase = buildQuery("{\"className\":\"Post\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"\\\"morning coffee\\\"\"}}}}}");
+        Query caseSensitive = buildQuery("{\"className\":\"Post\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"Coffee\",\"$caseSensitive\":true}}}}}");
+        JsonObject o = new JsonObject("{\"objectId\":\"Nj9CEXFvIm\", \"className\":\"Post\",\"body\":\"My morning coffee at the Café\"}");
+        assertTrue(any.matches(o));
+        assertTrue(phrase.matches(o));
+        assertFalse(caseSensitive.matches(o));
+        assertNotNull(any.getText());
+
+        o.put("body", "Coffee or tea?");
+        assertFalse(any.matches(o));
+        assertFalse(phrase.matches(o));
+        assertTrue(caseSensitive.matches(o));
+    }
+
+    @Test
+    void textExcludedPhrase() {
+        Query q = buildQuery("{\"className\":\"Post\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"coffee -\\\"iced coffee\\\"\"}}}}}");
+        TextSearch.Terms terms = new TextSearch.Terms("coffee -\"iced coffee\"", false, false);
+        assertTrue(terms.phrases.isEmpty());
+        assertEquals(1, terms.excludedPhrases.size());
+        assertTrue(q.matches(new JsonObject("{\"objectId\":\"Nj9CEXFvIm\",\"className\":\"Post\",\"body\":\"Hot coffee, iced tea\"}")));
+        assertFalse(q.matches(new JsonObject("{\"objectId\":\"Nj9CEXFvIm\",\"className\":\"Post\",\"body\":\"An iced coffee\"}")));
+    }
+
+    @Test
+    void textPhraseAndWord() {
+        Query q = buildQuery("{\"className\":\"Post\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"\\\"coffee shop\\\" cake\"}}}}}");
+        assertTrue(q.matches(new JsonObject("{\"objectId\":\"Nj9CEXFvIm\",\"className\":\"Post\",\"body\":\"The coffee shop on the corner\"}")));
+        assertFalse(q.matches(new JsonObject("{\"objectId\":\"Nj9CEXFvIm\",\"className\":\"Post\",\"body\":\"Coffee and cake at the shop\"}")));
+    }
+
+    @Test
+    void textTokenizedOncePerMessage() {
+        ParseObjectView view = new ParseObjectView(new JsonObject("{\"className\":\"Post\",\"body\":\"Morning coffee\"}"));
+        int body = FieldDictionary.forClass("Post").id("body");
+        assertSame(view.tokens(body, false, false), view.tokens(body, false, false));
+        assertEquals(Arrays.asList("Morning", "coffee"), view.tokens(body, true, false));
+        view.freeze(new BitSet());
+        assertSame(view.tokens(body, false, false), view.tokens(body, false, false));
+    }
+
+    @Test
+    void frozenViewDecodesObjectOnce() throws Exception {
+        JsonObject object = new JsonObject("{\"className\":\"Post\",\"title\":\"Morning coffee\",\"likes\":3}");
+        AtomicInteger decoded = new AtomicInteger();
+        FieldDictionary dictionary = FieldDictionary.forClass("Post");
+        int title = dictionary.id("title");
+        int likes = dictionary.id("likes");
+        // None of the fields is selected, they are all read from the complete object
+        ParseObjectView view = new ParseObjectView("Post", Collections.emptyMap(), new String[0], () -> {
+            decoded.incrementAndGet();
+            return object;
+        });
+        view.freeze(new BitSet());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    assertEquals("Morning coffee", view.get(title));
+                    assertEquals(3.0, view.get(likes));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, decoded.get());
+    }
 }
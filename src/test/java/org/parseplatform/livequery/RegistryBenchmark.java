@@ -0,0 +1,56 @@
+package org.parseplatform.livequery;
+
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The lookup of a dispatch lane, with a reused MatchBuffer, against indexed and unindexed subscriptions. The message
+ * and its views are built in the setup, so the lookup alone is measured. Run with the GC profiler, gc.alloc.rate.norm
+ * is what a lookup allocates:
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.parseplatform.livequery.RegistryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+    private final SubscriptionRegistry registry = SubscriptionRegistry.getInstance();
+    private final MatchBuffer buffer = new MatchBuffer();
+    private ParseMessage message;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 100; i++) {
+            registry.findOrCreate(new Query(new JsonObject("{\"className\":\"Score\",\"where\":{\"player\":\"player" + i + "\"}}")));
+            registry.findOrCreate(new Query(new JsonObject("{\"className\":\"Score\",\"where\":{\"points\":{\"$gte\":" + i * 10 + "}}}")));
+            registry.findOrCreate(new Query(new JsonObject("{\"className\":\"Score\",\"where\":{\"level\":{\"$ne\":" + i + "}}}")));
+        }
+        message = new ParseMessage(new JsonObject("{\"currentParseObject\":{\"player\":\"player7\",\"points\":500,\"level\":3,\"objectId\":\"yHOgbVKPFA\",\"className\":\"Score\"}," +
+            "\"originalParseObject\":{\"player\":\"player7\",\"points\":490,\"level\":3,\"objectId\":\"yHOgbVKPFA\",\"className\":\"Score\"}}"));
+        // Decodes the fields once, the benchmark only looks up
+        registry.findAfterSaveAsync(message, buffer);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffer.release();
+    }
+
+    @Benchmark
+    public int findAfterSave() {
+        return registry.findAfterSaveAsync(message, buffer).result().size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RegistryBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
@@ -0,0 +1,206 @@
+package org.parseplatform.livequery;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedDeflateTest {
+    private static final int TIMEOUT = 5;
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final JsonObject OBJECT = new JsonObject("{\"className\":\"Song\",\"objectId\":\"CqjsImPeAd\"," +
+        "\"title\":\"Fête\",\"plays\":12345678901,\"tags\":[\"a\",null,true]}");
+    private static Vertx vertx;
+
+    @BeforeAll
+    static void init() {
+        // The clients record their metrics in the shared registry
+        System.setProperty("vertx.metrics.options.registryName", "SharedDeflateTest");
+        vertx = Vertx.vertx();
+    }
+
+    @AfterAll
+    static void shutdown() throws Exception {
+        await(vertx.close());
+    }
+
+    @Test
+    void event() throws DataFormatException {
+        EventFrame frame = new EventFrame(Event.update, "CqjsImPeAd", OBJECT);
+        for (Codec codec : Codec.ALL) {
+            // The recipients share the deflated tail
+            for (String clientId : new String[]{"c-1", "c-2"}) {
+                ByteBuf message = frame.forDeflatingRecipient(codec, clientId, 300, 6, null);
+                JsonObject expected = new JsonObject().put("op", "update").put("clientId", clientId).put("requestId", 300)
+                    .put("object", OBJECT);
+                assertEquals(expected, codec.decode(Buffer.buffer(inflate(message))), codec.subProtocol());
+            }
+        }
+        frame.release();
+    }
+
+    @Test
+    void message() throws DataFormatException {
+        for (Codec codec : Codec.ALL) {
+            JsonObject error = Client.generateError(4, "Client is too slow");
+            assertEquals(error, codec.decode(Buffer.buffer(inflate(SharedDeflate.message(codec.encode(error))))));
+            // More than the 64KB of a stored block
+            JsonObject large = new JsonObject().put("op", "connected").put("text", new String(new char[100_000]).replace('\0', 'x'));
+            assertEquals(large, codec.decode(Buffer.buffer(inflate(SharedDeflate.message(codec.encode(large))))));
+        }
+    }
+
+    @Test
+    void negotiated() throws Exception {
+        assertTrue(connect(true, true).negotiated);
+        assertFalse(connect(true, false).negotiated);
+        assertFalse(connect(false, true).negotiated);
+    }
+
+    @Test
+    void deflatingConnection() throws Exception {
+        Connection connection = connect(true, true);
+        assertTrue(connection.negotiated);
+        CompletableFuture<Void> pushed = new CompletableFuture<>();
+        connection.context.runOnContext(v -> {
+            Client client = connection.client;
+            client.pushConnect();
+            EventFrame frame = new EventFrame(Event.update, "CqjsImPeAd", OBJECT);
+            client.pushFrame(frame, 1);
+            client.pushFrame(frame, 2);
+            frame.release();
+            pushed.complete(null);
+        });
+        pushed.get(TIMEOUT, TimeUnit.SECONDS);
+        connection.client.pushError(3, "Unknown operation");
+
+        // One frame of the messages of the tick, then the error
+        JsonArray batch = new JsonArray(Buffer.buffer(connection.nextFrame()));
+        assertEquals(3, batch.size());
+        assertEquals(true, batch.getJsonObject(0).getBoolean(Client.BATCH));
+        assertEquals(OBJECT, batch.getJsonObject(1).getJsonObject("object"));
+        assertEquals(2, batch.getJsonObject(2).getInteger(ParseConstants.REQUEST_ID));
+        assertEquals(3, new JsonObject(Buffer.buffer(connection.nextFrame())).getInteger("code"));
+        // Netty's decoder of the other side inflates them the same way
+        assertEquals(batch, new JsonArray(connection.received.poll(TIMEOUT, TimeUnit.SECONDS)));
+        assertEquals(3, new JsonObject(connection.received.poll(TIMEOUT, TimeUnit.SECONDS)).getInteger("code"));
+    }
+
+    // The content of a message as the other side inflates it: the sync flush tail is added back
+    private static byte[] inflate(ByteBuf message) throws DataFormatException {
+        byte[] content = ByteBufUtil.getBytes(SharedDeflate.finish(message));
+        message.release();
+        return inflate(content);
+    }
+
+    private static byte[] inflate(byte[] content) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        byte[] input = Arrays.copyOf(content, content.length + SYNC_TAIL.length);
+        System.arraycopy(SYNC_TAIL, 0, input, content.length, SYNC_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        while (!inflater.needsInput()) {
+            inflated.write(chunk, 0, inflater.inflate(chunk));
+        }
+        inflater.end();
+        return inflated.toByteArray();
+    }
+
+    private static Connection connect(boolean serverCompression, boolean clientCompression) throws Exception {
+        Connection connection = new Connection();
+        CompletableFuture<ServerWebSocket> accepted = new CompletableFuture<>();
+        HttpServerOptions options = new HttpServerOptions().setPerMessageWebSocketCompressionSupported(serverCompression)
+            .setPerFrameWebSocketCompressionSupported(false);
+        HttpServer server = vertx.createHttpServer(options).webSocketHandler(ws -> {
+            connection.context = Vertx.currentContext();
+            accepted.complete(ws);
+        });
+        int port = await(server.listen(0)).actualPort();
+        HttpClient httpClient = vertx.createHttpClient(new HttpClientOptions().setTryUsePerMessageWebSocketCompression(clientCompression));
+        WebSocket socket = await(httpClient.webSocket(port, "localhost", "/parse"));
+        socket.textMessageHandler(connection.received::add);
+        ServerWebSocket ws = accepted.get(TIMEOUT, TimeUnit.SECONDS);
+        // Like the connect message, once the handshake is done
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        connection.context.runOnContext(v -> {
+            connection.negotiated = SharedDeflate.negotiated(ws);
+            WebSocketChannel channel = new WebSocketChannel(ws);
+            for (Map.Entry<String, ChannelHandler> handler : channel.pipeline()) {
+                if (handler.getValue() instanceof WebSocketExtensionEncoder) {
+                    // Sees the frames before the encoder
+                    channel.pipeline().addAfter(handler.getKey(), "capture", connection.capture);
+                    break;
+                }
+            }
+            connection.client = new Client(ws, 1 << 20, true, connection.negotiated ? 6 : 0);
+            connected.complete(null);
+        });
+        connected.get(TIMEOUT, TimeUnit.SECONDS);
+        return connection;
+    }
+
+    private static <T> T await(Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private static final class Connection {
+        // The content and the RSV bits of the frames that the server writes
+        final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        final BlockingQueue<Integer> rsv = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        final ChannelHandler capture = new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+                if (msg instanceof WebSocketFrame) {
+                    WebSocketFrame frame = (WebSocketFrame) msg;
+                    rsv.add(frame.rsv());
+                    frames.add(ByteBufUtil.getBytes(frame.content()));
+                }
+                super.write(ctx, msg, promise);
+            }
+        };
+        boolean negotiated;
+        Context context;
+        Client client;
+
+        byte[] nextFrame() throws Exception {
+            byte[] frame = frames.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull(frame, "no frame");
+            assertEquals(WebSocketExtension.RSV1, rsv.poll());
+            return inflate(frame);
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package org.parseplatform.livequery;
 
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -33,7 +42,7 @@ class SubscriptionRegistryTest {
         Subscription subscription = registry.findOrCreate(query);
         JsonObject o = new JsonObject("{\"currentParseObject\":{\"objectId\":\"CqjsImPeAd\", \"__type\":\"Object\", \"className\":\"sharedSong\"}, \"originalParseObject\":null}");
         ParseMessage message = new ParseMessage(o);
-        Set<Subscription> subscriptions = registry.findSubscriptions(message);
+        Set<Subscription> subscriptions = registry.findAfterSave(message).keySet();
         assertAll("found",
             () -> assertEquals(1, subscriptions.size()),
             () -> assertSame(subscription, subscriptions.toArray()[0]));
@@ -45,7 +54,7 @@ class SubscriptionRegistryTest {
         Subscription subscription = registry.findOrCreate(query);
         JsonObject o = new JsonObject("{\"currentParseObject\":{\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Va4M39CvxD\"},\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedSong\"}}");
         ParseMessage message = new ParseMessage(o);
-        Set<Subscription> subscriptions = registry.findSubscriptions(message);
+        Set<Subscription> subscriptions = registry.findAfterSave(message).keySet();
         assertAll("found",
             () -> assertEquals(1, subscriptions.size()),
             () -> assertSame(subscription, subscriptions.toArray()[0]));
@@ -71,4 +80,440 @@ class SubscriptionRegistryTest {
         assertEquals(0, registry.count());
     }
 
+    @Test
+    void findCompound() {
+        Query query1 = new Query(new JsonObject("{\"className\":\"sharedPlaylist\",\"where\":{\"status\":\"active\",\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Va4M39CvxD\"}}}"));
+        Query query2 = new Query(new JsonObject("{\"className\":\"sharedPlaylist\",\"where\":{\"status\":\"active\",\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"}}}"));
+        Subscription subscription1 = registry.findOrCreate(query1);
+        Subscription subscription2 = registry.findOrCreate(query2);
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"status\":\"active\",\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Va4M39CvxD\"},\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedPlaylist\"}}");
+        Set<Subscription> subscriptions = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("found",
+            () -> assertEquals(1, subscriptions.size()),
+            () -> assertSame(subscription1, subscriptions.toArray()[0]));
+
+        // Leaving: only the original object matches
+        o = new JsonObject("{\"currentParseObject\":{\"status\":\"deleted\",\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"},\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedPlaylist\"}," +
+            "\"originalParseObject\":{\"status\":\"active\",\"user\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"},\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedPlaylist\"}}");
+        Set<Subscription> leaving = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("leaving",
+            () -> assertEquals(1, leaving.size()),
+            () -> assertSame(subscription2, leaving.toArray()[0]));
+
+        registry.removeIfEmpty(subscription1);
+        registry.removeIfEmpty(subscription2);
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).keySet().isEmpty());
+    }
+
+    @Test
+    void findMultiKey() {
+        Query query1 = new Query(new JsonObject("{\"className\":\"sharedAlbum\",\"where\":{\"objectId\":{\"$in\":[\"CqjsImPeAd\",\"yHOgbVKPFA\",\"Va4M39CvxD\"]}}}"));
+        Query query2 = new Query(new JsonObject("{\"className\":\"sharedAlbum\",\"where\":{\"$or\":[{\"objectId\":\"yHOgbVKPFA\"},{\"owner\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"}}]}}"));
+        Subscription subscription1 = registry.findOrCreate(query1);
+        Subscription subscription2 = registry.findOrCreate(query2);
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"owner\":{\"__type\":\"Pointer\",\"className\":\"_User\",\"objectId\":\"Nj9CEXFvIm\"},\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedAlbum\"}}");
+        Set<Subscription> subscriptions = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("found",
+            () -> assertEquals(2, subscriptions.size()),
+            () -> assertTrue(subscriptions.contains(subscription1)),
+            () -> assertTrue(subscriptions.contains(subscription2)));
+
+        o = new JsonObject("{\"currentParseObject\":{\"objectId\":\"Va4M39CvxD\",\"__type\":\"Object\",\"className\":\"sharedAlbum\"}}");
+        Set<Subscription> found = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("found",
+            () -> assertEquals(1, found.size()),
+            () -> assertSame(subscription1, found.toArray()[0]));
+
+        registry.removeIfEmpty(subscription1);
+        registry.removeIfEmpty(subscription2);
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).keySet().isEmpty());
+    }
+
+    @Test
+    void findRange() {
+        Query above = new Query(new JsonObject("{\"className\":\"sharedScore\",\"where\":{\"score\":{\"$gte\":100}}}"));
+        Query below = new Query(new JsonObject("{\"className\":\"sharedScore\",\"where\":{\"score\":{\"$lt\":50}}}"));
+        Query between = new Query(new JsonObject("{\"className\":\"sharedScore\",\"where\":{\"score\":{\"$gt\":10,\"$lte\":100}}}"));
+        Subscription subscriptionAbove = registry.findOrCreate(above);
+        Subscription subscriptionBelow = registry.findOrCreate(below);
+        Subscription subscriptionBetween = registry.findOrCreate(between);
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"score\":100,\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedScore\"}}");
+        Set<Subscription> subscriptions = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("found",
+            () -> assertEquals(2, subscriptions.size()),
+            () -> assertTrue(subscriptions.contains(subscriptionAbove)),
+            () -> assertTrue(subscriptions.contains(subscriptionBetween)));
+
+        o = new JsonObject("{\"currentParseObject\":{\"score\":5,\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedScore\"}}");
+        Set<Subscription> found = registry.findAfterSave(new ParseMessage(o)).keySet();
+        assertAll("found",
+            () -> assertEquals(1, found.size()),
+            () -> assertSame(subscriptionBelow, found.toArray()[0]));
+
+        registry.removeIfEmpty(subscriptionAbove);
+        registry.removeIfEmpty(subscriptionBelow);
+        registry.removeIfEmpty(subscriptionBetween);
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).keySet().isEmpty());
+    }
+
+    @Test
+    void findRangeWindows() {
+        // Windows [10i, 10i + 5), one bound of each is far from the value
+        Subscription[] windows = new Subscription[1000];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedWindow\",\"where\":{\"time\":{\"$gte\":" + i * 10 +
+                ",\"$lt\":" + (i * 10 + 5) + "}}}")));
+        }
+
+        MatchBuffer buffer = new MatchBuffer();
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"time\":5003,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedWindow\"}}");
+        registry.findAfterSave(new ParseMessage(o), buffer);
+        assertEquals(1, buffer.evaluated());
+        assertEquals(Collections.singletonMap(windows[500], Event.create), buffer.toMap());
+
+        // Between two windows, or on the excluded upper bound
+        for (int time : new int[]{5007, 5005, -1, 10000}) {
+            o.getJsonObject("currentParseObject").put("time", time);
+            registry.findAfterSave(new ParseMessage(o), buffer);
+            assertEquals(time == 5005 ? 1 : 0, buffer.evaluated(), "time " + time);
+            assertEquals(0, buffer.size());
+        }
+        buffer.release();
+
+        for (Subscription window : windows) {
+            registry.removeIfEmpty(window);
+        }
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).isEmpty());
+    }
+
+    @Test
+    void reclaimFields() {
+        FieldDictionary dictionary = FieldDictionary.forClass("sharedWide");
+        Subscription[] held = new Subscription[FieldDictionary.MAX_FIELDS];
+        for (int i = 0; i < held.length; i++) {
+            held[i] = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedWide\",\"where\":{\"f" + i + "\":{\"$ne\":0}}}")));
+        }
+        // The registered queries hold all the ids
+        JsonObject exists = new JsonObject("{\"className\":\"sharedWide\",\"where\":{\"other\":{\"$exists\":true}}}");
+        assertThrows(IllegalArgumentException.class, () -> new Query(exists));
+        // A message that is being dispatched, its view caches f2
+        ParseMessage message = new ParseMessage(new JsonObject("{\"currentParseObject\":{\"f1\":1,\"f2\":2,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedWide\"}}"));
+        assertTrue(registry.findAfterSave(message).containsKey(held[2]));
+
+        // Once most of them are removed, their ids are given to new fields
+        for (int i = 2; i < held.length; i++) {
+            registry.removeIfEmpty(held[i]);
+        }
+        Subscription other = registry.findOrCreate(new Query(exists));
+        assertEquals(-1, dictionary.find("f2"));
+        assertEquals(2, dictionary.find("other"));
+        Map<Subscription, Event> found = registry.findAfterSave(message);
+        assertTrue(found.containsKey(held[1]));
+        // Not the value cached for f2
+        assertFalse(found.containsKey(other));
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"other\":1,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedWide\"}}");
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).containsKey(other));
+
+        registry.removeIfEmpty(held[0]);
+        registry.removeIfEmpty(held[1]);
+        registry.removeIfEmpty(other);
+    }
+
+    @Test
+    void recompileReclaimedQuery() {
+        FieldDictionary dictionary = FieldDictionary.forClass("sharedNarrow");
+        Query compiled = new Query(new JsonObject("{\"className\":\"sharedNarrow\",\"where\":{\"f\":{\"$ne\":0}}}"));
+        // Fills the class, "f" isn't held and is reclaimed
+        for (int i = dictionary.size(); i <= FieldDictionary.MAX_FIELDS; i++) {
+            dictionary.id("g" + i);
+        }
+        assertEquals(-1, dictionary.find("f"));
+        Subscription subscription = registry.findOrCreate(compiled);
+        assertNotSame(compiled, subscription.getQuery());
+        assertEquals(compiled, subscription.getQuery());
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"f\":1,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedNarrow\"}}");
+        assertEquals(Collections.singletonMap(subscription, Event.create), registry.findAfterSave(new ParseMessage(o)));
+
+        registry.removeIfEmpty(subscription);
+    }
+
+    @Test
+    void reclaimClasses() {
+        // Some classes may be held by the subscriptions of other tests
+        List<Subscription> held = new ArrayList<>();
+        IllegalArgumentException full = null;
+        for (int i = 0; i <= FieldDictionary.MAX_CLASSES && full == null; i++) {
+            try {
+                held.add(registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedClass" + i + "\",\"where\":{\"f\":{\"$ne\":0}}}"))));
+            } catch (IllegalArgumentException e) {
+                full = e;
+            }
+        }
+        assertNotNull(full);
+        // Once one of them is removed, its class is dropped for a new one
+        registry.removeIfEmpty(held.remove(0));
+        held.add(registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedNewClass\",\"where\":{\"f\":{\"$ne\":0}}}"))));
+
+        for (Subscription subscription : held) {
+            registry.removeIfEmpty(subscription);
+        }
+    }
+
+    @Test
+    void findEvents() {
+        Subscription subscription = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedTrack\",\"where\":{\"status\":\"active\"}}")));
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"status\":\"active\",\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedTrack\"}}");
+        assertEquals(Collections.singletonMap(subscription, Event.create), registry.findAfterSave(new ParseMessage(o)));
+        assertEquals(Collections.singletonMap(subscription, Event.delete), registry.findAfterDelete(new ParseMessage(o)));
+
+        o = new JsonObject("{\"currentParseObject\":{\"status\":\"active\",\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedTrack\"}," +
+            "\"originalParseObject\":{\"status\":\"active\",\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedTrack\"}}");
+        assertEquals(Collections.singletonMap(subscription, Event.update), registry.findAfterSave(new ParseMessage(o)));
+
+        o = new JsonObject("{\"currentParseObject\":{\"status\":\"deleted\",\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedTrack\"}," +
+            "\"originalParseObject\":{\"status\":\"active\",\"objectId\":\"yHOgbVKPFA\",\"__type\":\"Object\",\"className\":\"sharedTrack\"}}");
+        assertEquals(Collections.singletonMap(subscription, Event.leave), registry.findAfterSave(new ParseMessage(o)));
+        assertTrue(registry.findAfterDelete(new ParseMessage(o)).isEmpty());
+
+        registry.removeIfEmpty(subscription);
+    }
+
+    @Test
+    void findOrCreateWithFields() {
+        Query mobile = new Query(new JsonObject("{\"className\":\"sharedSong\",\"where\":{\"status\":\"active\",\"rating\":5},\"fields\":[\"title\"]}"));
+        Query web = new Query(new JsonObject("{\"className\":\"sharedSong\",\"where\":{\"status\":\"active\",\"rating\":5},\"fields\":[\"title\",\"artist\"]}"));
+        Subscription subscription = registry.findOrCreate(mobile);
+        assertSame(subscription, registry.findOrCreate(web));
+        registry.removeIfEmpty(subscription);
+    }
+
+    @Test
+    void findOrCreateAfterRemove() {
+        Query query = new Query(new JsonObject("{\"className\":\"sharedSong\",\"where\":{\"objectId\":\"CqjsImPeAd\"}}"));
+        Subscription subscription = registry.findOrCreate(query);
+        registry.removeIfEmpty(subscription);
+        // A client that found it before it was removed has to find it again
+        assertFalse(subscription.addClientSubscription(null, 1, Projection.ALL));
+        Subscription recreated = registry.findOrCreate(query);
+        assertNotSame(subscription, recreated);
+        registry.removeIfEmpty(recreated);
+        assertFalse(registry.hasSubscriptions("sharedSong"));
+    }
+
+    @Test
+    void clientSubscriptions() {
+        Subscription subscription = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedSong\",\"where\":{\"objectId\":\"CqjsImPeAd\"}}")));
+        Projection titles = Projection.of(new JsonArray().add("title"));
+        assertTrue(subscription.addClientSubscription(null, 1, Projection.ALL));
+        assertTrue(subscription.addClientSubscription(null, 1, Projection.ALL));
+        assertTrue(subscription.addClientSubscription(null, 2, titles));
+        subscription.removeClientSubscription(null, 1, Projection.ALL);
+        assertTrue(subscription.hasSubscribingClient());
+        // Still subscribed with the titles
+        registry.removeIfEmpty(subscription);
+        assertSame(subscription, registry.findOrCreate(subscription.getQuery()));
+        subscription.removeClientSubscription(null, 1, titles);
+        subscription.removeClientSubscription(null, 2, titles);
+        assertFalse(subscription.hasSubscribingClient());
+        registry.removeIfEmpty(subscription);
+        assertFalse(registry.hasSubscriptions("sharedSong"));
+    }
+
+    @Test
+    void parseSelectively() {
+        String message = "{\"currentParseObject\":{\"title\":\"Intro\",\"status\":\"active\",\"ACL\":{\"*\":{\"read\":true}},\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedRecord\"}," +
+            "\"originalParseObject\":{\"title\":\"Intro\",\"status\":\"draft\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedRecord\"}}";
+        assertNull(ParseMessage.parse(message, registry::hasSubscriptions));
+
+        Subscription subscription = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedRecord\",\"where\":{\"status\":\"active\"}}")));
+        ParseMessage parsed = ParseMessage.parse(message, registry::hasSubscriptions);
+        assertNotNull(parsed);
+        assertEquals("yHOgbVKPFA", parsed.objectId);
+        assertTrue(parsed.isPubliclyReadable());
+        assertEquals(Collections.singletonMap(subscription, Event.enter), registry.findAfterSave(parsed));
+        assertEquals("Intro", parsed.currentParseObject().getString("title"));
+
+        registry.removeIfEmpty(subscription);
+        assertNull(ParseMessage.parse(message, registry::hasSubscriptions));
+    }
+
+    @Test
+    void parseOnlyRoutes() {
+        // The ingress stops at the objectId, the lane finds out that the message is truncated
+        ParseMessage parsed = ParseMessage.parse("{\"currentParseObject\":{\"className\":\"sharedRecord\",\"objectId\":\"yHOgbVKPFA\",\"title\":", className -> true);
+        assertEquals("sharedRecord", parsed.className);
+        assertEquals("yHOgbVKPFA", parsed.objectId);
+        assertThrows(DecodeException.class, parsed::split);
+
+        parsed = ParseMessage.parse("{\"originalParseObject\":{\"title\":\"a\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedRecord\"}," +
+            "\"currentParseObject\":{\"title\":\"b\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedRecord\"}}", className -> true);
+        parsed.split();
+        assertEquals("a", parsed.originalParseObject().getString("title"));
+        assertEquals("b", parsed.currentParseObject().getString("title"));
+    }
+
+    @Test
+    void findGeo() {
+        Subscription viewport = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedDriver\",\"where\":{\"location\":{\"$within\":{\"$box\":[{\"__type\":\"GeoPoint\",\"latitude\":32,\"longitude\":34.7},{\"__type\":\"GeoPoint\",\"latitude\":32.2,\"longitude\":34.9}]}}}}")));
+        Subscription elsewhere = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedDriver\",\"where\":{\"location\":{\"$within\":{\"$box\":[{\"__type\":\"GeoPoint\",\"latitude\":40,\"longitude\":-74.1},{\"__type\":\"GeoPoint\",\"latitude\":40.9,\"longitude\":-73.7}]}}}}")));
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"location\":{\"__type\":\"GeoPoint\",\"latitude\":32.11,\"longitude\":34.795},\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedDriver\"}}");
+        assertEquals(Collections.singletonMap(viewport, Event.create), registry.findAfterSave(new ParseMessage(o)));
+
+        o = new JsonObject("{\"currentParseObject\":{\"location\":{\"__type\":\"GeoPoint\",\"latitude\":31.5,\"longitude\":34.795},\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedDriver\"}," +
+            "\"originalParseObject\":{\"location\":{\"__type\":\"GeoPoint\",\"latitude\":32.11,\"longitude\":34.795},\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedDriver\"}}");
+        assertEquals(Collections.singletonMap(viewport, Event.leave), registry.findAfterSave(new ParseMessage(o)));
+
+        registry.removeIfEmpty(viewport);
+        registry.removeIfEmpty(elsewhere);
+        assertFalse(registry.hasSubscriptions("sharedDriver"));
+    }
+
+    @Test
+    void findRegex() {
+        Subscription roman = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedChat\",\"where\":{\"text\":{\"$regex\":\"@roman\\\\b\"}}}")));
+        Subscription anna = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedChat\",\"where\":{\"text\":{\"$regex\":\"@anna\\\\b\",\"$options\":\"i\"}}}")));
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"text\":\"hi @Anna and @roman\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedChat\"}}");
+        Map<Subscription, Event> found = registry.findAfterSave(new ParseMessage(o));
+        assertEquals(2, found.size());
+        assertEquals(Event.create, found.get(roman));
+        assertEquals(Event.create, found.get(anna));
+
+        registry.removeIfEmpty(anna);
+        o = new JsonObject("{\"currentParseObject\":{\"text\":\"hi @ANNA and @romanov\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedChat\"}}");
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).isEmpty());
+
+        registry.removeIfEmpty(roman);
+    }
+
+    @Test
+    void findText() {
+        Subscription coffee = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedPost\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"coffee espresso\"}}}}}")));
+        Subscription tea = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedPost\",\"where\":{\"body\":{\"$text\":{\"$search\":{\"$term\":\"tea\"}}}}}")));
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"body\":\"An ESPRESSO, please\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedPost\"}}");
+        assertEquals(Collections.singletonMap(coffee, Event.create), registry.findAfterSave(new ParseMessage(o)));
+
+        registry.removeIfEmpty(coffee);
+        assertTrue(registry.findAfterSave(new ParseMessage(o)).isEmpty());
+        registry.removeIfEmpty(tea);
+        assertFalse(registry.hasSubscriptions("sharedPost"));
+    }
+
+    @Test
+    void findUnchanged() {
+        Query query = new Query(new JsonObject("{\"className\":\"sharedCounter\",\"where\":{\"status\":\"active\",\"score\":{\"$gt\":10}}}"));
+        Subscription subscription = registry.findOrCreate(query);
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"status\":\"active\",\"score\":20,\"views\":2,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedCounter\"}," +
+            "\"originalParseObject\":{\"status\":\"active\",\"score\":20.0,\"views\":1,\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedCounter\"}}");
+        ParseMessage message = new ParseMessage(o);
+        assertTrue(query.isUnchangedBy(message));
+        assertEquals(Collections.singletonMap(subscription, Event.update), registry.findAfterSave(message));
+
+        o.getJsonObject("originalParseObject").put("score", 5);
+        message = new ParseMessage(o);
+        assertFalse(query.isUnchangedBy(message));
+        assertEquals(Collections.singletonMap(subscription, Event.enter), registry.findAfterSave(message));
+
+        registry.removeIfEmpty(subscription);
+    }
+
+    @Test
+    void findParallel() throws Exception {
+        registry.enableParallelScan(4, 2);
+        Subscription[] subscriptions = new Subscription[8];
+        for (int i = 0; i < subscriptions.length; i++) {
+            subscriptions[i] = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedFeed\",\"where\":{\"status\":{\"$ne\":\"status" + i + "\"}}}")));
+        }
+
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"status\":\"status3\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedFeed\"}}");
+        MatchBuffer buffer = new MatchBuffer();
+        Map<Subscription, Event> found = registry.findAfterSaveAsync(new ParseMessage(o), buffer).
+            toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS).toMap();
+        buffer.release();
+        assertEquals(registry.findAfterSave(new ParseMessage(o)), found);
+        assertEquals(7, found.size());
+        assertFalse(found.containsKey(subscriptions[3]));
+
+        for (Subscription subscription : subscriptions) {
+            registry.removeIfEmpty(subscription);
+        }
+    }
+
+    @Test
+    void findParallelFails() throws Exception {
+        registry.enableParallelScan(4, 2);
+        Subscription[] subscriptions = new Subscription[8];
+        subscriptions[0] = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedPattern\",\"where\":{\"text\":{\"$regex\":\"^(a|b)*$\"}}}")));
+        for (int i = 1; i < subscriptions.length; i++) {
+            subscriptions[i] = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedPattern\",\"where\":{\"status\":{\"$ne\":\"status" + i + "\"}}}")));
+        }
+
+        // The regex overflows the stack of the pool thread
+        String text = new String(new char[100_000]).replace("\0", "ab");
+        JsonObject o = new JsonObject().put("currentParseObject", new JsonObject().put("text", text)
+            .put("objectId", "yHOgbVKPFA").put("className", "sharedPattern"));
+        MatchBuffer buffer = new MatchBuffer();
+        ExecutionException failed = assertThrows(ExecutionException.class, () -> registry.findAfterSaveAsync(new ParseMessage(o), buffer).
+            toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertTrue(failed.getCause() instanceof StackOverflowError);
+
+        // The next lookup isn't held up
+        o.getJsonObject("currentParseObject").put("text", "ab");
+        buffer.clear();
+        assertEquals(8, registry.findAfterSaveAsync(new ParseMessage(o), buffer).
+            toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS).size());
+        buffer.release();
+
+        for (Subscription subscription : subscriptions) {
+            registry.removeIfEmpty(subscription);
+        }
+    }
+
+    @Test
+    void freezeReferencedFields() {
+        FieldDictionary dictionary = FieldDictionary.forClass("sharedWideFeed");
+        int status = dictionary.id("status");
+        int title = dictionary.id("title");
+        ParseMessage message = ParseMessage.parse("{\"currentParseObject\":{\"status\":\"on\",\"title\":\"b\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedWideFeed\"}," +
+            "\"originalParseObject\":{\"status\":\"on\",\"title\":\"a\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedWideFeed\"}}", className -> true);
+        BitSet fields = new BitSet();
+        fields.set(status);
+        message.freeze(fields);
+        assertFalse(message.isChanged(status));
+        // Not frozen, still read correctly
+        assertTrue(message.isChanged(title));
+        assertEquals("b", message.current().get(title));
+        assertEquals(dictionary.id("other") + 1, dictionary.size());
+        assertSame(ParseObjectView.ABSENT, message.current().get(dictionary.id("other")));
+    }
+
+    @Test
+    void findReusesBuffer() {
+        Subscription byId = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedLog\",\"where\":{\"objectId\":\"yHOgbVKPFA\"}}")));
+        Subscription compound = registry.findOrCreate(new Query(new JsonObject("{\"className\":\"sharedLog\",\"where\":{\"level\":\"warn\",\"source\":{\"$in\":[\"web\",\"ios\"]}}}")));
+        JsonObject o = new JsonObject("{\"currentParseObject\":{\"level\":\"warn\",\"source\":\"web\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedLog\"}," +
+            "\"originalParseObject\":{\"level\":\"info\",\"source\":\"web\",\"objectId\":\"yHOgbVKPFA\",\"className\":\"sharedLog\"}}");
+        ParseMessage message = new ParseMessage(o);
+        MatchBuffer buffer = new MatchBuffer();
+        int capacity = buffer.capacity();
+        for (int i = 0; i < 1000; i++) {
+            // Completed synchronously with the buffer's own future, and the arrays are reused
+            assertSame(buffer.completed(), registry.findAfterSaveAsync(message, buffer));
+            assertEquals(2, buffer.size());
+            assertEquals(capacity, buffer.capacity());
+        }
+        assertEquals(Event.update, buffer.toMap().get(byId));
+        assertEquals(Event.enter, buffer.toMap().get(compound));
+        buffer.release();
+
+        registry.removeIfEmpty(byId);
+        registry.removeIfEmpty(compound);
+    }
 }